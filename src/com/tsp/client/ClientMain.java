@@ -9,7 +9,7 @@ import com.tsp.client.view.GameView;
 import com.tsp.client.view.StartupView;
 import com.tsp.server.controller.TCP.TCPServer;
 import com.tsp.server.controller.UDP.UDPServer;
-import com.tsp.server.model.ServerModel;
+import com.tsp.server.model.InstanceManager;
 
 import java.io.IOException;
 import java.net.UnknownHostException;
@@ -17,7 +17,7 @@ import java.net.UnknownHostException;
 
 public class ClientMain
 {
-	static ServerModel serverModel = null;
+	static InstanceManager instanceManager = null;
 	public static void main(String[] arguments) throws IOException, InterruptedException
 	{
 
@@ -89,18 +89,19 @@ public class ClientMain
 		gv.play();
 		if(server != null)
 		{
-			serverModel.quit();
+			instanceManager.quit();
+			TCPServer.quit();
+			UDPServer.quit();
 		}
 	}
 
 	private static void runServer() throws IOException
 	{
-		serverModel = new ServerModel();
-		UDPServer udpServer = new UDPServer(serverModel);
-		TCPServer tcpServer = new TCPServer(serverModel);
+		instanceManager = new InstanceManager();
+		UDPServer udpServer = new UDPServer(instanceManager);
+		TCPServer tcpServer = new TCPServer(instanceManager);
 		tcpServer.start();
 		udpServer.start();
-		serverModel.run();
 	}
 	
 	/**
@@ -6,12 +6,13 @@ import com.tsp.packets.ActorUpdate;
 import com.tsp.packets.AttackPacket;
 import com.tsp.packets.MovementPacket;
 import com.tsp.packets.Packet;
-import org.json.simple.JSONArray;
+import com.tsp.packets.Protocol;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Map;
 
@@ -33,6 +34,8 @@ public class ConnectionController implements GameListener
 	private DatagramSocket socket;
 	InetAddress addr;
 	int port = 12000;
+	Protocol protocol = Protocol.BINARY;
+	private final ByteBuffer sendBuffer = ByteBuffer.allocate(1024);
 
 	/**
 	 * Creates a new Connection Controller with the default network address of the localhost
@@ -119,6 +122,16 @@ public class ConnectionController implements GameListener
 		}
 	}
 
+	/**
+	 * Sets the encoding of the datagrams, the server accepts both
+	 *
+	 * @param protocol the packet encoding to use
+	 */
+	public void setProtocol(Protocol protocol)
+	{
+		this.protocol = protocol;
+	}
+
 	/**
 	 * {@inheritDoc}
 	 *
@@ -167,9 +180,11 @@ public class ConnectionController implements GameListener
 	 */
 	private void processAttack(GameEvent e)
 	{
-		packets.add(new AttackPacket((Integer) e.payload.get("ID"),
-		                             (Integer) e.payload.get("X"),
-		                             (Integer) e.payload.get("Y")));
+		AttackPacket attack = new AttackPacket((Integer) e.payload.get("ID"),
+		                                       (Integer) e.payload.get("X"),
+		                                       (Integer) e.payload.get("Y"));
+		attack.setSequence(sequenceOf(e));
+		packets.add(attack);
 	}
 
 	/**
@@ -180,10 +195,21 @@ public class ConnectionController implements GameListener
 	private void processMove(GameEvent e)
 	{
 
-		packets.add(new MovementPacket((Integer) e.payload.get("ID"),
-		                               ((Double) e.payload.get("X")).intValue(),
-		                               ((Double) e.payload.get("Y")).intValue(),
-		                               (Integer) e.payload.get("Z")));
+		MovementPacket movement = new MovementPacket((Integer) e.payload.get("ID"),
+		                                             ((Double) e.payload.get("X")).intValue(),
+		                                             ((Double) e.payload.get("Y")).intValue(),
+		                                             (Integer) e.payload.get("Z"));
+		movement.setSequence(sequenceOf(e));
+		packets.add(movement);
+	}
+
+	/**
+	 * Gets the number the model gave a predicted input, 0 if the event has none
+	 */
+	private static int sequenceOf(GameEvent e)
+	{
+		Integer sequence = (Integer) e.payload.get("sequence");
+		return sequence == null ? 0 : sequence;
 	}
 
 	/**
@@ -196,9 +222,10 @@ public class ConnectionController implements GameListener
 			if (socket != null)
 			{
 				LOGGER.info("Sending Packet @ {}: {}", System.currentTimeMillis(), packet);
-				byte[] data = packet.toJSONString().getBytes();
-				DatagramPacket response = new DatagramPacket(data,
-				                                             data.length,
+				sendBuffer.clear();
+				protocol.encode(packet, sendBuffer);
+				DatagramPacket response = new DatagramPacket(sendBuffer.array(),
+				                                             sendBuffer.position(),
 				                                             addr,
 				                                             12000);
 				try
@@ -10,9 +10,12 @@ import java.util.Queue;
 
 import com.tsp.game.actors.Actor;
 import com.tsp.game.actors.Player;
+import com.tsp.game.actors.SpatialIndex;
 import com.tsp.game.map.Dungeon;
 import com.tsp.game.map.Point3D;
 import com.tsp.packets.ActorUpdate;
+import com.tsp.packets.ExploredPacket;
+import com.tsp.packets.SnapshotPacket;
 import com.tsp.packets.MessagePacket;
 import com.tsp.packets.Packet;
 import com.tsp.packets.ScorePacket;
@@ -34,10 +37,16 @@ public class GameModel
 
 	// Game tile types
 	private HashMap<Integer, Actor> otherActors;
+	// Where the other actors stand, created with the dungeon
+	private SpatialIndex actorIndex;
 	private HashMap<String, KDTuple> scores;
 	private boolean ready = false;
 
 	private Player me;
+	// Where the server last put the player, packed, me is drawn where the inputs it has
+	// not acknowledged yet take it from there
+	private long confirmed;
+	private final PendingInputs inputs = new PendingInputs();
 	private Dungeon dungeon;
 	private String playerName;
 
@@ -59,6 +68,15 @@ public class GameModel
 		return this.dungeon;
 	}
 
+	/**
+	 * Gets the name the player asked for, known before the dungeon is
+	 * @return the name of the player
+	 */
+	public String getPlayerName()
+	{
+		return playerName;
+	}
+
 	public Player getMe()
 	{
 		if (me == null)
@@ -72,38 +90,34 @@ public class GameModel
 	/* Methods used to get symbols and colors for drawing in the map */
 	public String getSymbol(int y, int x, int z)
 	{
-		Point3D point = new Point3D(x, y, z);
-		if (me.getPos().equals(point))
+		if (me.isAt(x, y, z))
 		{
 			return me.getSymbol();
-		} else if (me.isAttacking() && me.getAttackPos().equals(point))
+		} else if (me.isAttacking() && me.getAttackX() == x && me.getAttackY() == y && me.getZ() == z)
 		{
 			return me.getAttackSymbol();
 		}
 
 		if (!dungeon.isUnrevealed(x, y, z))
-			for (Actor a : otherActors.values())
+		{
+			Actor a = actorIndex.actorAt(x, y, z);
+			if (a != null)
 			{
-				if (a.getPos().equals(point))
-				{
-					return a.getSymbol();
-				}
-				if (a instanceof Player)
-				{
-					if (((Player) a).isAttacking()
-							&& ((Player) a).getAttackPos().equals(point))
-					{
-						return ((Player) a).getAttackSymbol();
-					}
-				}
+				return a.getSymbol();
+			}
+			Player attacker = attackerOf(x, y, z);
+			if (attacker != null)
+			{
+				return attacker.getAttackSymbol();
 			}
+		}
 
-		return this.dungeon.getTile(new Point3D(x, y, z));
+		return this.dungeon.getTileType(x, y, z).getSymbol();
 	}
 
 	public int getColor(int x, int y, int z)
 	{
-		if (me.getPos().equals(new Point3D(x, y, z))
+		if (me.isAt(x, y, z)
 				|| (attackLocation != null && x == attackLocation.getX()
 				&& y == attackLocation.getY() && z == attackLocation
 				.getZ()))
@@ -113,12 +127,10 @@ public class GameModel
 		if (dungeon.isUnrevealed(x, y, z))
 			return 232 + 9;
 
-		for (Actor a : otherActors.values())
+		Actor a = actorIndex.actorAt(x, y, z);
+		if (a != null)
 		{
-			if (a.getPos().equals(new Point3D(x, y, z)))
-			{
-				return a.getColor();
-			}
+			return a.getColor();
 		}
 
 		if (dungeon.isStairUp(x, y, z) || dungeon.isStairDown(x, y, z))
@@ -126,6 +138,36 @@ public class GameModel
 		return 255;
 	}
 
+	/**
+	 * Finds another player whose attack is drawn on the given tile, only the
+	 * four neighbouring tiles can hold such a player
+	 */
+	private Player attackerOf(int x, int y, int z)
+	{
+		Player attacker = attackerAt(x - 1, y, z, x, y);
+		if (attacker == null)
+			attacker = attackerAt(x + 1, y, z, x, y);
+		if (attacker == null)
+			attacker = attackerAt(x, y - 1, z, x, y);
+		if (attacker == null)
+			attacker = attackerAt(x, y + 1, z, x, y);
+		return attacker;
+	}
+
+	private Player attackerAt(int fromX, int fromY, int z, int x, int y)
+	{
+		for (Actor a = actorIndex.actorAt(fromX, fromY, z); a != null; a = a.getNextInCell())
+		{
+			if (a instanceof Player && ((Player) a).isAttacking())
+			{
+				Point3D delta = ((Player) a).getDelta();
+				if (fromX + delta.x == x && fromY + delta.y == y)
+					return (Player) a;
+			}
+		}
+		return null;
+	}
+
 	/* Convinience setters and getters, also game state information */
 	public void setID(int id)
 	{
@@ -134,12 +176,25 @@ public class GameModel
 
 	public void setDungeon(String[][][] dungeon)
 	{
-		this.dungeon = new Dungeon(dungeon);
+		setDungeon(new Dungeon(dungeon));
+	}
+
+	public void setDungeon(Dungeon dungeon)
+	{
+		this.dungeon = dungeon;
+		actorIndex = new SpatialIndex(this.dungeon.getColumns(), this.dungeon.getRows(),
+		                              this.dungeon.getFloors());
+		for (Actor actor : otherActors.values())
+		{
+			actorIndex.add(actor);
+		}
 	}
 
 	public void setMe(Player me)
 	{
 		this.me = me;
+		confirmed = me.getPos().pack();
+		inputs.clear();
 		dungeon.updateVisibleDungeon(this.me);
 		if (!scores.containsKey(me.getName()))
 			scores.put(me.getName(), new KDTuple());
@@ -215,7 +270,7 @@ public class GameModel
 					setQuit(true);
 				} else {
 					scores.remove(otherActors.get(actorUpdate.getActorID()).getName());
-					otherActors.remove(actorUpdate.getActorID());
+					actorIndex.remove(otherActors.remove(actorUpdate.getActorID()));
 				}
 			} else
 			{
@@ -225,7 +280,7 @@ public class GameModel
 
 				if (actorUpdate.contains("X"))
 				{
-					actor.setX(((Long) actorUpdate.getValue("X")).intValue());
+					actor.setX(actorUpdate.getIntValue("X"));
 					if (actor.getId() == me.getId())
 					{
 						meMoved = true;
@@ -234,7 +289,7 @@ public class GameModel
 
 				if (actorUpdate.contains("Y"))
 				{
-					actor.setY(((Long) actorUpdate.getValue("Y")).intValue());
+					actor.setY(actorUpdate.getIntValue("Y"));
 					if (actor.getId() == me.getId())
 					{
 						meMoved = true;
@@ -243,7 +298,7 @@ public class GameModel
 
 				if (actorUpdate.contains("Z"))
 				{
-					actor.setZ(((Long) actorUpdate.getValue("Z")).intValue());
+					actor.setZ(actorUpdate.getIntValue("Z"));
 					if (actor.getId() == me.getId())
 					{
 						meMoved = true;
@@ -251,8 +306,7 @@ public class GameModel
 				}
 
 				if (actorUpdate.contains("health"))
-					actor.setHealth(((Long) actorUpdate.getValue("health"))
-							.intValue());
+					actor.setHealth(actorUpdate.getIntValue("health"));
 
 				if (actorUpdate.contains("symbol"))
 					actor.setSymbol((String) actorUpdate.getValue("symbol"));
@@ -261,26 +315,137 @@ public class GameModel
 						&& actorUpdate.contains("deltaX")
 						&& actorUpdate.contains("deltaY"))
 				{
-					((Player) actor).setAttacking((Boolean) actorUpdate
-							.getValue("attacking"), new Point3D(
-									((Long) actorUpdate.getValue("deltaX")).intValue(),
-									((Long) actorUpdate.getValue("deltaY")).intValue(),
-									0));
+					((Player) actor).setAttacking((Boolean) actorUpdate.getValue("attacking"),
+							actorUpdate.getIntValue("deltaX"), actorUpdate.getIntValue("deltaY"));
 				}
 				if (meMoved)
 				{
+					// Moved by the server outside of the inputs, start predicting from there
+					confirmed = me.getPos().pack();
+					inputs.clear();
 					dungeon.updateVisibleDungeon(me);
 				}
 			}
 		}
 	}
 
+	/**
+	 * Applies the changes of a server snapshot
+	 * @param snapshot the snapshot
+	 */
+	public void applySnapshot(SnapshotPacket snapshot)
+	{
+		for (SnapshotPacket.Entry entry : snapshot.getEntries())
+		{
+			Actor actor;
+			if (entry.getActorID() == getMe().getId())
+			{
+				if (entry.has(SnapshotPacket.X | SnapshotPacket.Y | SnapshotPacket.Z))
+					confirmed = Point3D.pack(entry.has(SnapshotPacket.X) ? entry.getX() : Point3D.unpackX(confirmed),
+					                         entry.has(SnapshotPacket.Y) ? entry.getY() : Point3D.unpackY(confirmed),
+					                         entry.has(SnapshotPacket.Z) ? entry.getZ() : Point3D.unpackZ(confirmed));
+				// An attack not acknowledged yet is drawn already, an older state must not undo it
+				entry.applyStateTo(me, !inputs.hasAttack());
+				continue;
+			}
+			actor = otherActors.get(entry.getActorID());
+			if (actor == null)
+			{
+				if (!entry.has(SnapshotPacket.NEW))
+					continue;
+				actor = entry.newActor();
+				addActor(actor);
+			}
+			else if (entry.has(SnapshotPacket.NEW))
+			{
+				// Back in view after being hidden
+				actorIndex.add(actor);
+			}
+			entry.applyTo(actor);
+		}
+		for (int id : snapshot.getRemoved())
+		{
+			if (getMe().getId() == id)
+			{
+				me.setHealth(0);
+				setQuit(true);
+			}
+			else if (otherActors.containsKey(id))
+			{
+				scores.remove(otherActors.get(id).getName());
+				actorIndex.remove(otherActors.remove(id));
+			}
+		}
+		for (int id : snapshot.getHidden())
+		{
+			Actor actor = otherActors.get(id);
+			if (actor != null)
+				actorIndex.remove(actor);
+		}
+		// Where the server put the player, plus whatever it has not seen of the inputs yet
+		inputs.acknowledge(snapshot.getAck(), System.currentTimeMillis());
+		if (replay())
+		{
+			dungeon.updateVisibleDungeon(me);
+		}
+	}
+
+	/**
+	 * Puts the player where the inputs the server has not acknowledged take it from where
+	 * the server last put it
+	 * @return true if the player moved
+	 */
+	private boolean replay()
+	{
+		long predicted = confirmed;
+		for (int i = 0; i < inputs.size(); i++)
+		{
+			if (!inputs.isAttack(i))
+				predicted = step(predicted, inputs.getDeltaX(i), inputs.getDeltaY(i));
+		}
+		if (me.getPos().pack() == predicted)
+			return false;
+		me.moveTo(Point3D.unpackX(predicted), Point3D.unpackY(predicted), Point3D.unpackZ(predicted));
+		return true;
+	}
+
+	/**
+	 * Takes one step the way the server does, stairs lead on to the next floor
+	 * @param from the packed position to step from
+	 * @return the packed position after the step, from if the step is blocked
+	 */
+	private long step(long from, int dx, int dy)
+	{
+		int x = Point3D.unpackX(from) + dx;
+		int y = Point3D.unpackY(from) + dy;
+		int z = Point3D.unpackZ(from);
+		if (!dungeon.walkableTile(x, y, z) || actorIndex.occupied(x, y, z))
+			return from;
+		if (dungeon.isStairUp(x, y, z) && z + 1 < dungeon.getFloors())
+			z++;
+		else if (dungeon.isStairDown(x, y, z) && z > 0)
+			z--;
+		return Point3D.pack(x, y, z);
+	}
+
+	/**
+	 * Reveals what the player explored before it reconnected
+	 * @param packet the explored map sent by the server
+	 */
+	public void applyExplored(ExploredPacket packet)
+	{
+		packet.getExplored().revealIn(dungeon);
+	}
+
 	public void addActor(Actor actor)
 	{
 		if (actor.getId() != me.getId()
 				&& !otherActors.containsKey(actor.getId())) {
 			otherActors.put(actor.getId(), actor);
-			scores.put(actor.getName(), new KDTuple());
+			actorIndex.add(actor);
+			// Monsters and potions have no score
+			if (actor.getType() == Actor.ActorType.ACTOR_PLAYER)
+				scores.put(actor.getName(), new KDTuple());
 		}
 	}
 
@@ -288,32 +453,50 @@ public class GameModel
 		scores.put(actor.getName(), score);
 	}
 
-	private boolean occupied(Point3D point)
+	/**
+	 * Moves the player right away for a move that passed {@link #attemptMove(Point)}
+	 * <p>The move is kept and replayed on top of every position the server sends until the
+	 * server acknowledges it, so the player does not wait for the round trip.</p>
+	 * @param delta the move
+	 * @return the sequence number to send the move with
+	 */
+	public int predictMove(Point delta)
 	{
-		for (Actor actor : otherActors.values())
+		int sequence = inputs.add(delta.x, delta.y, false, System.currentTimeMillis());
+		long predicted = step(me.getPos().pack(), delta.x, delta.y);
+		if (me.getPos().pack() != predicted)
 		{
-			if (actor.getPos().equals(point))
-				return true;
+			me.moveTo(Point3D.unpackX(predicted), Point3D.unpackY(predicted), Point3D.unpackZ(predicted));
+			dungeon.updateVisibleDungeon(me);
 		}
-		return false;
+		return sequence;
+	}
+
+	/**
+	 * Keeps an attack that passed {@link #attemptAttack(Point3D)}, which shows it right away,
+	 * until the server acknowledges it
+	 * @param delta the direction of the attack
+	 * @return the sequence number to send the attack with
+	 */
+	public int predictAttack(Point delta)
+	{
+		return inputs.add(delta.x, delta.y, true, System.currentTimeMillis());
 	}
 
 	/* Attempting attack and move methods */
 	public boolean attemptMove(Point delta)
 	{
-		Point3D newPosition = me.getPos().clone();
-		newPosition.translate((int) delta.getX(), (int) delta.getY());
+		int x = me.getX() + delta.x;
+		int y = me.getY() + delta.y;
+		int z = me.getZ();
 
 		if (getMe().isAttacking())
 			return false;
 
-		// Verify the new Point3D is inside the map
-		if (getDungeon().validPoint(newPosition))
+		// Verify the new position is inside the map
+		if (getDungeon().validPoint(x, y, z))
 		{
-			int x = (int) newPosition.getX();
-			int y = (int) newPosition.getY();
-			int z = newPosition.getZ();
-			if (!occupied(newPosition))
+			if (!actorIndex.occupied(x, y, z))
 			{
 				if (dungeon.isEmptyFloor(x, y, z))
 				{
@@ -335,20 +518,17 @@ public class GameModel
 
 	public boolean attemptAttack(Point3D delta)
 	{
-		Point3D newPosition = me.getPos().clone();
-		newPosition.translate(delta.x, delta.y);
-
-		int x = newPosition.x;
-		int y = newPosition.y;
-		int z = newPosition.getZ();
+		int x = me.getX() + delta.x;
+		int y = me.getY() + delta.y;
+		int z = me.getZ();
 
 		if (getMe().isAttacking() && getMe().attemptAttackReset())
 			return false;
 
-		if (getDungeon().validPoint(newPosition)
-				&& (dungeon.isEmptyFloor(new Point3D(x, y, z)) || occupied(newPosition)))
+		if (getDungeon().validPoint(x, y, z)
+				&& (dungeon.isEmptyFloor(x, y, z) || actorIndex.occupied(x, y, z)))
 		{
-			me.setAttacking(true, delta);
+			me.setAttacking(true, delta.x, delta.y);
 			return true;
 		}
 
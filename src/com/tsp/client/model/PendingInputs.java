@@ -0,0 +1,117 @@
+package com.tsp.client.model;
+
+/**
+ * The moves and attacks sent to the server it has not acknowledged yet, oldest first
+ * <p>Inputs are numbered from 1 up. The server acknowledges them by number in its
+ * snapshots, every input up to that number is then dropped. An input the server never
+ * gets, because its datagram was lost, is dropped once it is older than
+ * {@link #TIMEOUT} milliseconds, so the prediction does not keep it forever.</p>
+ * <p>Kept in a ring of primitive arrays, nothing is allocated per input.</p>
+ */
+class PendingInputs
+{
+	// The most inputs waiting, the oldest is dropped to make room for a new one
+	private static final int CAPACITY = 64;
+	// Milliseconds after which an input is taken as lost
+	private static final long TIMEOUT = 1000;
+
+	private final int[] sequence = new int[CAPACITY];
+	private final int[] deltaX = new int[CAPACITY];
+	private final int[] deltaY = new int[CAPACITY];
+	private final boolean[] attack = new boolean[CAPACITY];
+	private final long[] sent = new long[CAPACITY];
+	private int first = 0;
+	private int count = 0;
+	private int next = 1;
+
+	/**
+	 * Numbers an input and keeps it until it is acknowledged
+	 * @param dx the columns moved or attacked towards
+	 * @param dy the rows moved or attacked towards
+	 * @param isAttack true for an attack, false for a move
+	 * @param now the time it is sent, in milliseconds
+	 * @return the number of the input
+	 */
+	int add(int dx, int dy, boolean isAttack, long now)
+	{
+		if (count == CAPACITY)
+			drop();
+		int slot = (first + count++) % CAPACITY;
+		sequence[slot] = next;
+		deltaX[slot] = dx;
+		deltaY[slot] = dy;
+		attack[slot] = isAttack;
+		sent[slot] = now;
+		return next++;
+	}
+
+	/**
+	 * Drops the inputs up to an acknowledged number and the ones that were lost
+	 * @param ack the number of the last input the server applied
+	 * @param now the current time, in milliseconds
+	 */
+	void acknowledge(int ack, long now)
+	{
+		while (count > 0 && (sequence[first] <= ack || now - sent[first] > TIMEOUT))
+		{
+			drop();
+		}
+	}
+
+	void clear()
+	{
+		first = 0;
+		count = 0;
+	}
+
+	int size()
+	{
+		return count;
+	}
+
+	/**
+	 * Gets the columns of an input
+	 * @param i the input, 0 for the oldest
+	 */
+	int getDeltaX(int i)
+	{
+		return deltaX[(first + i) % CAPACITY];
+	}
+
+	/**
+	 * Gets the rows of an input
+	 * @param i the input, 0 for the oldest
+	 */
+	int getDeltaY(int i)
+	{
+		return deltaY[(first + i) % CAPACITY];
+	}
+
+	/**
+	 * Checks if an input is an attack
+	 * @param i the input, 0 for the oldest
+	 */
+	boolean isAttack(int i)
+	{
+		return attack[(first + i) % CAPACITY];
+	}
+
+	/**
+	 * Checks if any waiting input is an attack
+	 */
+	boolean hasAttack()
+	{
+		for (int i = 0; i < count; i++)
+		{
+			if (isAttack(i))
+				return true;
+		}
+		return false;
+	}
+
+	private void drop()
+	{
+		first = (first + 1) % CAPACITY;
+		count--;
+	}
+}
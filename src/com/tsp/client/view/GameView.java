@@ -25,6 +25,8 @@ import com.tsp.game.actors.Player;
 import com.tsp.game.map.Point3D;
 import com.tsp.packets.ActorPacket;
 import com.tsp.packets.ActorUpdate;
+import com.tsp.packets.ExploredPacket;
+import com.tsp.packets.SnapshotPacket;
 import com.tsp.packets.MessagePacket;
 import com.tsp.packets.Packet;
 import com.tsp.packets.ScorePacket;
@@ -163,6 +165,12 @@ public class GameView implements Listenable
 				ActorUpdate actorUpdate = (ActorUpdate) packet;
 				model.update(actorUpdate);
 				break;
+			case SNAPSHOT_PACKET:
+				model.applySnapshot((SnapshotPacket) packet);
+				break;
+			case EXPLORED_PACKET:
+				model.applyExplored((ExploredPacket) packet);
+				break;
 			case MESSAGE_PACKET:
 				MessagePacket messageUpdate = (MessagePacket) packet;
 				model.addMessage(messageUpdate);
@@ -399,6 +407,7 @@ public class GameView implements Listenable
 			movement.put("X", moveDelta.getX());
 			movement.put("Y", moveDelta.getY());
 			movement.put("Z", moveDelta.getZ());
+			movement.put("sequence", model.predictMove(moveDelta));
 			fireEvent(EventType.TURN_MOVE, movement);
 		}
 		if (attacked)
@@ -408,6 +417,7 @@ public class GameView implements Listenable
 			attack.put("ID", player.getId());
 			attack.put("X", (int) attackDelta.getX());
 			attack.put("Y", (int) attackDelta.getY());
+			attack.put("sequence", model.predictAttack(attackDelta));
 			fireEvent(EventType.TURN_ATTACK, attack);
 		}
 	}
@@ -1,9 +1,6 @@
 package com.tsp.game.actors;
 
-import com.tsp.game.map.Dungeon;
-import com.tsp.packets.Packet;
-
-import java.util.ArrayList;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * Created with IntelliJ IDEA.
@@ -14,17 +11,169 @@ import java.util.ArrayList;
  */
 public abstract class AI extends Actor
 {
+	private static final int[] STEP_X = {1, -1, 0, 0};
+	private static final int[] STEP_Y = {0, 0, 1, -1};
+
+	// Ticks from one turn to the next
+	private final int delay;
+	private int wait = 0;
+	// What the last turn decided, carried out by the server once every AI of the floor decided
+	private int stepX;
+	private int stepY;
+	private boolean striking;
+
 	public AI()
+	{
+		this(1);
+	}
+
+	/**
+	 * Creates an AI
+	 * @param delay the number of ticks from one turn to the next
+	 */
+	public AI(int delay)
 	{
 		super();
 		type = ActorType.ACTOR_AI;
+		this.delay = Math.max(1, delay);
+	}
+
+	/**
+	 * Counts down to the next turn, called every tick the AI gets a chance to act
+	 * @return true if the AI takes its turn now
+	 */
+	public boolean ready()
+	{
+		if (wait > 0)
+		{
+			wait--;
+			return false;
+		}
+		wait = delay - 1;
+		return true;
+	}
+
+	/**
+	 * Calculates the AIs turn, which is then read with {@link #getStepX()},
+	 * {@link #getStepY()} and {@link #isStriking()}
+	 * <p>Only looks at the world, turns of the AIs of a floor are taken in parallel.</p>
+	 * @param world the world around the AI
+	 */
+	public abstract void turn(WorldView world);
+
+	/**
+	 * Forgets the decision of the last turn, called once it was carried out
+	 */
+	public void rest()
+	{
+		stepX = stepY = 0;
+		striking = false;
+	}
+
+	public int getStepX()
+	{
+		return stepX;
+	}
+
+	public int getStepY()
+	{
+		return stepY;
 	}
 
 	/**
-	 * Calculates the AIs turn
-	 * @param dungeon the dungeon
-	 * @param actors the actors
-	 * @return a packet
+	 * Checks if the turn is an attack on the tile at the step, instead of a move to it
 	 */
-	public abstract Packet turn(Dungeon dungeon, ArrayList<Actor> actors);
+	public boolean isStriking()
+	{
+		return striking;
+	}
+
+	/**
+	 * Decides to move by one tile
+	 */
+	protected void step(int dx, int dy)
+	{
+		stepX = dx;
+		stepY = dy;
+		striking = false;
+	}
+
+	/**
+	 * Decides to attack the tile next to the AI
+	 */
+	protected void strike(int dx, int dy)
+	{
+		stepX = dx;
+		stepY = dy;
+		striking = true;
+	}
+
+	/**
+	 * Decides to move to a random free tile next to the AI, if there is one
+	 */
+	protected void wander(WorldView world)
+	{
+		int start = ThreadLocalRandom.current().nextInt(4);
+		for (int i = 0; i < 4; i++)
+		{
+			int dir = (start + i) & 3;
+			if (world.isFree(getX() + STEP_X[dir], getY() + STEP_Y[dir], getZ()))
+			{
+				step(STEP_X[dir], STEP_Y[dir]);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Decides to take the first step of the shortest way to a tile, if that step is free
+	 * and on the floor of the AI
+	 * @return false if there is no such step
+	 */
+	protected boolean stepAlongPath(WorldView world, int x, int y, int z)
+	{
+		int next = world.nextStep(getX(), getY(), getZ(), x, y, z);
+		if (next < 0 || world.floorOf(next) != getZ())
+			return false;
+		int nx = world.columnOf(next);
+		int ny = world.rowOf(next);
+		if (!world.isFree(nx, ny, getZ()))
+			return false;
+		step(nx - getX(), ny - getY());
+		return true;
+	}
+
+	/**
+	 * Decides to move one tile closer to, or away from, a tile along the axis that
+	 * changes the distance most and is free
+	 * @return false if both ways are blocked
+	 */
+	protected boolean stepTowards(WorldView world, int x, int y, boolean away)
+	{
+		int dx = Integer.signum(x - getX());
+		int dy = Integer.signum(y - getY());
+		if (away)
+		{
+			dx = -dx;
+			dy = -dy;
+		}
+		boolean xFirst = Math.abs(x - getX()) >= Math.abs(y - getY());
+		// When running away from a tile straight along one axis, either side will do
+		if (away && dx == 0)
+			dx = ThreadLocalRandom.current().nextBoolean() ? 1 : -1;
+		if (away && dy == 0)
+			dy = ThreadLocalRandom.current().nextBoolean() ? 1 : -1;
+		for (int i = 0; i < 2; i++)
+		{
+			boolean alongX = xFirst == (i == 0);
+			int sx = alongX ? dx : 0;
+			int sy = alongX ? 0 : dy;
+			if ((sx != 0 || sy != 0) && world.isFree(getX() + sx, getY() + sy, getZ()))
+			{
+				step(sx, sy);
+				return true;
+			}
+		}
+		return false;
+	}
 }
@@ -1,6 +1,7 @@
 package com.tsp.game.actors;
 
 import java.awt.Point;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.json.simple.JSONAware;
 import org.json.simple.JSONObject;
@@ -20,9 +21,9 @@ public class Actor implements JSONAware
 {
 
 	/**
-	 * The number of actors generated by the server
+	 * The number of actors generated by the server, actors are created by several threads
 	 */
-	protected static int count = 0;
+	protected static final AtomicInteger count = new AtomicInteger();
 	Point3D pos;
 	String name;
 	int id;
@@ -31,13 +32,18 @@ public class Actor implements JSONAware
 	ActorType type;
 	String symbol;
 
+	// Book keeping of the SpatialIndex tracking this actor
+	SpatialIndex index;
+	Actor nextInCell;
+	int indexedFloor = -1;
+	int indexedCell = -1;
+
 	/**
 	 * Sets Actor ID to actor count and then increments actor count
 	 */
 	public Actor()
 	{
-		id = count;
-		count++;
+		id = count.getAndIncrement();
 	}
 
 	/**
@@ -112,6 +118,7 @@ public class Actor implements JSONAware
 	public void setZ(Integer z)
 	{
 		pos.setZ(z);
+		reindex();
 	}
 
 	/**
@@ -130,6 +137,7 @@ public class Actor implements JSONAware
 	public void setX(Integer x)
 	{
 		pos.x = x;
+		reindex();
 	}
 
 	/**
@@ -148,6 +156,7 @@ public class Actor implements JSONAware
 	public void setY(Integer y)
 	{
 		pos.y = y;
+		reindex();
 	}
 
 	/**
@@ -169,9 +178,9 @@ public class Actor implements JSONAware
 	 * @param z the z coordinate
 	 * @return whether or not the actor was hit
 	 */
-	boolean checkHit(int x, int y, int z)
+	public boolean checkHit(int x, int y, int z)
 	{
-		return checkHit(new Point3D(x, y, z));
+		return pos.isAt(x, y, z);
 	}
 
 	/**
@@ -184,6 +193,18 @@ public class Actor implements JSONAware
 		return pos.equals(check);
 	}
 
+	/**
+	 * Checks if the actor stands on a tile
+	 * @param x the x coordinate
+	 * @param y the y coordinate
+	 * @param z the z coordinate
+	 * @return whether the actor is there
+	 */
+	public boolean isAt(int x, int y, int z)
+	{
+		return pos.isAt(x, y, z);
+	}
+
 	/**
 	 * Gets the Position of the actor
 	 * @return the {@link Point3D} Position of the actor
@@ -200,6 +221,19 @@ public class Actor implements JSONAware
 	public void setPos(Point3D pos)
 	{
 		this.pos = pos;
+		reindex();
+	}
+
+	/**
+	 * Moves the actor to a tile, changing its position in place
+	 * @param x the new X position
+	 * @param y the new Y position
+	 * @param z the new Z position
+	 */
+	public void moveTo(int x, int y, int z)
+	{
+		pos.setLocation(x, y, z);
+		reindex();
 	}
 
 	/**
@@ -209,7 +243,8 @@ public class Actor implements JSONAware
 	 */
 	public void move(int x, int y)
 	{
-		move(new Point3D(x, y, 0));
+		pos.translate(x, y);
+		reindex();
 	}
 
 	/**
@@ -219,6 +254,7 @@ public class Actor implements JSONAware
 	public void move(Point3D movement)
 	{
 		pos.add(movement);
+		reindex();
 	}
 
 	/**
@@ -229,7 +265,9 @@ public class Actor implements JSONAware
 	 */
 	public void move(int x, int y, int z)
 	{
-		move(new Point3D(x, y, z));
+		pos.translate(x, y);
+		pos.moveZ(z);
+		reindex();
 	}
 
 	/**
@@ -302,6 +340,25 @@ public class Actor implements JSONAware
 	{
 		java.util.Random r = new java.util.Random();
 		pos = new Point3D(r.nextInt(cols), r.nextInt(rows), r.nextInt(lvls));
+		reindex();
+	}
+
+	/**
+	 * Tells the {@link SpatialIndex} tracking this actor, if any, that the position changed
+	 */
+	private void reindex()
+	{
+		if (index != null)
+			index.update(this);
+	}
+
+	/**
+	 * Gets the next actor on the same tile in the {@link SpatialIndex}
+	 * @return the next actor, or null if this is the last one
+	 */
+	public Actor getNextInCell()
+	{
+		return nextInCell;
 	}
 
 	/**
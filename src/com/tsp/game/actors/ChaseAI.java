@@ -0,0 +1,37 @@
+package com.tsp.game.actors;
+
+/**
+ * A monster that goes after the closest player it can see and attacks it once next to it
+ */
+public class ChaseAI extends AI
+{
+	// How far away a player is noticed
+	private static final int SIGHT = 6;
+
+	public ChaseAI()
+	{
+		super(10);
+		name = "Goblin";
+		symbol = "g";
+		color = 34;
+		health = 3;
+	}
+
+	@Override
+	public void turn(WorldView world)
+	{
+		Actor target = world.nearestPlayer(getX(), getY(), getZ(), SIGHT);
+		if (target == null)
+		{
+			wander(world);
+			return;
+		}
+		int dx = target.getX() - getX();
+		int dy = target.getY() - getY();
+		if (Math.abs(dx) + Math.abs(dy) == 1)
+			strike(dx, dy);
+		else if (!stepAlongPath(world, target.getX(), target.getY(), target.getZ())
+				&& !stepTowards(world, target.getX(), target.getY(), false))
+			wander(world);
+	}
+}
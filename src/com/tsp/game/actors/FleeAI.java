@@ -0,0 +1,27 @@
+package com.tsp.game.actors;
+
+/**
+ * A monster that runs from players that come close and wanders otherwise
+ */
+public class FleeAI extends AI
+{
+	// How close a player has to come to scare it
+	private static final int SIGHT = 4;
+
+	public FleeAI()
+	{
+		super(4);
+		name = "Rat";
+		symbol = "r";
+		color = 130;
+		health = 1;
+	}
+
+	@Override
+	public void turn(WorldView world)
+	{
+		Actor threat = world.nearestPlayer(getX(), getY(), getZ(), SIGHT);
+		if (threat == null || !stepTowards(world, threat.getX(), threat.getY(), true))
+			wander(world);
+	}
+}
@@ -18,6 +18,8 @@ public final class Player extends Actor
 	boolean attacking = false;
 	Point3D attackDelta = new Point3D(0,0,0);
 	int attackCounter = 0;
+	// The number of the last input of the client applied to the player
+	int lastInput = 0;
 
 	/**
 	 * Creates a new player with name of Player count
@@ -77,16 +79,27 @@ public final class Player extends Actor
 	}
 
 	public void setAttacking(boolean attacking, Point3D attackDelta)
+	{
+		setAttacking(attacking, attackDelta.x, attackDelta.y);
+	}
+
+	/**
+	 * Starts or stops attacking, the direction is copied so the caller may reuse its point
+	 * @param attacking whether the player attacks
+	 * @param deltaX the columns from the player to the attacked tile
+	 * @param deltaY the rows from the player to the attacked tile
+	 */
+	public void setAttacking(boolean attacking, int deltaX, int deltaY)
 	{
 		if((this.attacking = attacking))
 		{
 			attackCounter = ATTACK_COUNTER_MAX;
-			this.attackDelta = (Point3D) attackDelta;
-			if(this.attackDelta.equals(Point3D.UP) || this.attackDelta.equals(Point3D.DOWN))
+			attackDelta.setLocation(deltaX, deltaY, 0);
+			if(deltaX == 0 && (deltaY == 1 || deltaY == -1))
 			{
 				attackSymbol = "|";
 			}
-			else if(this.attackDelta.equals(Point3D.LEFT) || this.attackDelta.equals(Point3D.RIGHT))
+			else if(deltaY == 0 && (deltaX == 1 || deltaX == -1))
 			{
 				attackSymbol = "-";
 			}
@@ -116,6 +129,22 @@ public final class Player extends Actor
 		return attackPos;
 	}
 
+	/**
+	 * Gets the column of the attacked tile, like {@link #getAttackPos()} without a new point
+	 */
+	public int getAttackX()
+	{
+		return pos.x + attackDelta.x;
+	}
+
+	/**
+	 * Gets the row of the attacked tile, like {@link #getAttackPos()} without a new point
+	 */
+	public int getAttackY()
+	{
+		return pos.y + attackDelta.y;
+	}
+
 	public void setXAttack(int x)
 	{
 		this.attackDelta.x = x;
@@ -131,6 +160,30 @@ public final class Player extends Actor
 		return attackDelta;
 	}
 	
+	/**
+	 * Records that an input of the client controlling the player is being applied
+	 * @param sequence the number of the input, 0 for clients that do not number their inputs
+	 * @return false if an input numbered as high was applied already, the input is then stale
+	 */
+	public boolean acceptInput(int sequence)
+	{
+		if (sequence == 0)
+			return true;
+		if (sequence <= lastInput)
+			return false;
+		lastInput = sequence;
+		return true;
+	}
+
+	/**
+	 * Gets the number of the last input of the client applied to the player
+	 * @return the sequence number, 0 if none was
+	 */
+	public int getLastInput()
+	{
+		return lastInput;
+	}
+
 	public String getWeaponName() {
 		return "Sword";
 	}
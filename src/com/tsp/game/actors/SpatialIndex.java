@@ -0,0 +1,223 @@
+package com.tsp.game.actors;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.tsp.game.map.FreeTileIndex;
+import com.tsp.game.map.Point3D;
+
+/**
+ * A grid of the actors on every floor, keyed by tile
+ * <p>Each tile holds the head of an intrusive list of the actors standing on it, so
+ * lookups are a single array read and nothing is allocated while actors move.
+ * Actors added to the index keep it up to date themselves whenever their position
+ * changes through {@link Actor#setPos(Point3D)}, {@link Actor#move(Point3D)} and friends.</p>
+ * <p>The index is not thread safe. Floors are independent of each other though, so
+ * different threads can each own a floor, as long as an actor changing floor is moved
+ * by a thread owning both.</p>
+ */
+public class SpatialIndex
+{
+	private final int cols;
+	private final int rows;
+	private final Actor[][] floors;
+	// Told whenever a tile gets its first actor or loses its last, may be null
+	private final FreeTileIndex freeTiles;
+	private final AtomicInteger count = new AtomicInteger();
+
+	/**
+	 * Creates an empty index
+	 * @param cols the number of columns of the dungeon
+	 * @param rows the number of rows of the dungeon
+	 * @param floors the number of floors of the dungeon
+	 */
+	public SpatialIndex(int cols, int rows, int floors)
+	{
+		this(cols, rows, floors, null);
+	}
+
+	/**
+	 * Creates an empty index that keeps the free tiles of the dungeon up to date
+	 * @param cols the number of columns of the dungeon
+	 * @param rows the number of rows of the dungeon
+	 * @param floors the number of floors of the dungeon
+	 * @param freeTiles the free tiles, every tile is free to begin with
+	 */
+	public SpatialIndex(int cols, int rows, int floors, FreeTileIndex freeTiles)
+	{
+		this.cols = cols;
+		this.rows = rows;
+		this.floors = new Actor[floors][];
+		this.freeTiles = freeTiles;
+	}
+
+	/**
+	 * Starts tracking an actor
+	 * @param actor the actor
+	 */
+	public void add(Actor actor)
+	{
+		if (actor.index == this)
+			return;
+		if (actor.index != null)
+			actor.index.remove(actor);
+		actor.index = this;
+		count.incrementAndGet();
+		update(actor);
+	}
+
+	/**
+	 * Stops tracking an actor
+	 * @param actor the actor
+	 */
+	public void remove(Actor actor)
+	{
+		if (actor.index != this)
+			return;
+		unlink(actor);
+		actor.index = null;
+		count.decrementAndGet();
+	}
+
+	/**
+	 * Moves the actor to the cell of its current position, called by the actor
+	 * @param actor the actor that moved
+	 */
+	void update(Actor actor)
+	{
+		Point3D pos = actor.pos;
+		int floor = -1;
+		int cell = -1;
+		if (pos != null && inBounds(pos.x, pos.y, pos.getZ()))
+		{
+			floor = pos.getZ();
+			cell = pos.x * rows + pos.y;
+		}
+		if (floor == actor.indexedFloor && cell == actor.indexedCell)
+			return;
+		unlink(actor);
+		if (floor < 0)
+			return;
+		Actor[] grid = floors[floor];
+		if (grid == null)
+			grid = floors[floor] = new Actor[cols * rows];
+		if (grid[cell] == null && freeTiles != null)
+			freeTiles.occupy(floor, cell);
+		actor.nextInCell = grid[cell];
+		grid[cell] = actor;
+		actor.indexedFloor = floor;
+		actor.indexedCell = cell;
+	}
+
+	private void unlink(Actor actor)
+	{
+		if (actor.indexedFloor < 0)
+			return;
+		Actor[] grid = floors[actor.indexedFloor];
+		int cell = actor.indexedCell;
+		if (grid[cell] == actor)
+		{
+			grid[cell] = actor.nextInCell;
+		}
+		else
+		{
+			for (Actor a = grid[cell]; a != null; a = a.nextInCell)
+			{
+				if (a.nextInCell == actor)
+				{
+					a.nextInCell = actor.nextInCell;
+					break;
+				}
+			}
+		}
+		if (grid[cell] == null && freeTiles != null)
+			freeTiles.release(actor.indexedFloor, cell);
+		actor.nextInCell = null;
+		actor.indexedFloor = -1;
+		actor.indexedCell = -1;
+	}
+
+	private boolean inBounds(int x, int y, int z)
+	{
+		return x >= 0 && x < cols && y >= 0 && y < rows && z >= 0 && z < floors.length;
+	}
+
+	/**
+	 * Gets the first actor standing on a tile, use {@link Actor#getNextInCell()} for the rest
+	 * @param x the x coordinate
+	 * @param y the y coordinate
+	 * @param z the z coordinate
+	 * @return the actor, or null if the tile is free
+	 */
+	public Actor actorAt(int x, int y, int z)
+	{
+		if (!inBounds(x, y, z))
+			return null;
+		Actor[] grid = floors[z];
+		return grid == null ? null : grid[x * rows + y];
+	}
+
+	/**
+	 * Checks if any actor stands on a tile
+	 * @param x the x coordinate
+	 * @param y the y coordinate
+	 * @param z the z coordinate
+	 * @return whether the tile is occupied
+	 */
+	public boolean occupied(int x, int y, int z)
+	{
+		return actorAt(x, y, z) != null;
+	}
+
+	/**
+	 * Checks if any actor stands on a tile
+	 * @param point the tile
+	 * @return whether the tile is occupied
+	 */
+	public boolean occupied(Point3D point)
+	{
+		return actorAt(point.x, point.y, point.getZ()) != null;
+	}
+
+	/**
+	 * Collects the actors within a square around a tile on the same floor
+	 * @param x the x coordinate of the center
+	 * @param y the y coordinate of the center
+	 * @param z the floor
+	 * @param radius the number of tiles in every direction
+	 * @param out the array the actors are put into, collecting stops when it is full
+	 * @return the number of actors put into out
+	 */
+	public int collect(int x, int y, int z, int radius, Actor[] out)
+	{
+		if (z < 0 || z >= floors.length || floors[z] == null)
+			return 0;
+		Actor[] grid = floors[z];
+		int found = 0;
+		int minX = Math.max(0, x - radius);
+		int maxX = Math.min(cols - 1, x + radius);
+		int minY = Math.max(0, y - radius);
+		int maxY = Math.min(rows - 1, y + radius);
+		for (int i = minX; i <= maxX; i++)
+		{
+			for (int j = minY; j <= maxY; j++)
+			{
+				for (Actor a = grid[i * rows + j]; a != null; a = a.nextInCell)
+				{
+					if (found == out.length)
+						return found;
+					out[found++] = a;
+				}
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Gets the number of tracked actors
+	 * @return the actor count
+	 */
+	public int size()
+	{
+		return count.get();
+	}
+}
@@ -0,0 +1,22 @@
+package com.tsp.game.actors;
+
+/**
+ * A monster that roams about and never fights
+ */
+public class WanderAI extends AI
+{
+	public WanderAI()
+	{
+		super(6);
+		name = "Bat";
+		symbol = "b";
+		color = 244;
+		health = 1;
+	}
+
+	@Override
+	public void turn(WorldView world)
+	{
+		wander(world);
+	}
+}
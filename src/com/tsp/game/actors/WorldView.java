@@ -0,0 +1,122 @@
+package com.tsp.game.actors;
+
+import com.tsp.game.map.Dungeon;
+import com.tsp.game.map.PathFinder;
+
+/**
+ * What an {@link AI} may look at while taking its turn
+ * <p>Only reads the dungeon, the {@link SpatialIndex} and the flow fields of the
+ * {@link PathFinder}, so the AIs of a floor can take their turns in parallel as long as
+ * nothing moves meanwhile.</p>
+ */
+public class WorldView
+{
+	private final Dungeon dungeon;
+	private final SpatialIndex index;
+	private final PathFinder paths;
+
+	/**
+	 * Creates a view
+	 * @param dungeon the dungeon
+	 * @param index where the actors stand
+	 * @param paths the path finder of the dungeon
+	 */
+	public WorldView(Dungeon dungeon, SpatialIndex index, PathFinder paths)
+	{
+		this.dungeon = dungeon;
+		this.index = index;
+		this.paths = paths;
+	}
+
+	public int getColumns()
+	{
+		return dungeon.getColumns();
+	}
+
+	public int getRows()
+	{
+		return dungeon.getRows();
+	}
+
+	/**
+	 * Checks if a tile is open floor with nobody on it, stairs are not free
+	 */
+	public boolean isFree(int x, int y, int z)
+	{
+		return dungeon.validPoint(x, y, z) && dungeon.isEmptyFloor(x, y, z) && !index.occupied(x, y, z);
+	}
+
+	/**
+	 * Gets the first actor standing on a tile
+	 * @return the actor, null if the tile is free
+	 * @see SpatialIndex#actorAt(int, int, int)
+	 */
+	public Actor actorAt(int x, int y, int z)
+	{
+		return index.actorAt(x, y, z);
+	}
+
+	/**
+	 * Gets the first step of a shortest way to a tile, walls are in the way but actors are not
+	 * <p>Every actor heading for the same tile shares one flow field.</p>
+	 * @return the index of the tile to step on, see {@link #columnOf(int)} and friends, -1
+	 * if the tile is too far or can not be reached
+	 */
+	public int nextStep(int x, int y, int z, int toX, int toY, int toZ)
+	{
+		if (!dungeon.validPoint(x, y, z) || !dungeon.validPoint(toX, toY, toZ))
+			return -1;
+		return paths.getFlowField(dungeon.index(toX, toY, toZ)).next(dungeon.index(x, y, z));
+	}
+
+	public int columnOf(int cell)
+	{
+		return cell % (dungeon.getColumns() * dungeon.getRows()) / dungeon.getRows();
+	}
+
+	public int rowOf(int cell)
+	{
+		return cell % dungeon.getRows();
+	}
+
+	public int floorOf(int cell)
+	{
+		return cell / (dungeon.getColumns() * dungeon.getRows());
+	}
+
+	/**
+	 * Finds the closest living player on a floor
+	 * @param x the column to look from
+	 * @param y the row to look from
+	 * @param z the floor
+	 * @param radius how many tiles to look in every direction
+	 * @return the player, null if none is in range
+	 */
+	public Actor nearestPlayer(int x, int y, int z, int radius)
+	{
+		Actor nearest = null;
+		int best = Integer.MAX_VALUE;
+		int minX = Math.max(0, x - radius);
+		int maxX = Math.min(dungeon.getColumns() - 1, x + radius);
+		int minY = Math.max(0, y - radius);
+		int maxY = Math.min(dungeon.getRows() - 1, y + radius);
+		for (int i = minX; i <= maxX; i++)
+		{
+			for (int j = minY; j <= maxY; j++)
+			{
+				for (Actor a = index.actorAt(i, j, z); a != null; a = a.getNextInCell())
+				{
+					if (a.getType() != Actor.ActorType.ACTOR_PLAYER || a.getHealth() <= 0)
+						continue;
+					int distance = Math.abs(i - x) + Math.abs(j - y);
+					if (distance < best)
+					{
+						best = distance;
+						nearest = a;
+					}
+				}
+			}
+		}
+		return nearest;
+	}
+}
@@ -0,0 +1,122 @@
+package com.tsp.game.map;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Reads and writes a whole {@link Dungeon} as a single block of bytes
+ * <p>The block starts with the columns, rows and floors as ints, followed by a byte
+ * naming the encoding and then the tile codes in {@link Dungeon#index(int, int, int)} order.
+ * {@link #RAW} stores one byte per tile, {@link #RLE} stores runs as a count byte
+ * followed by the tile code. Maps are mostly long runs of wall and floor so the run
+ * length form is usually picked, but whichever is smaller is used.</p>
+ */
+public class DungeonCodec
+{
+	public static final byte RAW = 0;
+	public static final byte RLE = 1;
+	private static final int HEADER_SIZE = 13;
+	private static final int MAX_RUN = 255;
+
+	/**
+	 * Encodes the dungeon
+	 * @param dungeon the dungeon to encode
+	 * @return a buffer holding the encoded dungeon, ready to be read
+	 */
+	public static ByteBuffer encode(Dungeon dungeon)
+	{
+		byte[] tiles = dungeon.getTiles();
+		int runs = countRuns(tiles);
+		boolean rle = runs * 2 < tiles.length;
+		ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + (rle ? runs * 2 : tiles.length));
+		buf.putInt(dungeon.getColumns());
+		buf.putInt(dungeon.getRows());
+		buf.putInt(dungeon.getFloors());
+		if (rle)
+		{
+			buf.put(RLE);
+			int i = 0;
+			while (i < tiles.length)
+			{
+				byte code = tiles[i];
+				int run = 1;
+				while (i + run < tiles.length && tiles[i + run] == code && run < MAX_RUN)
+					run++;
+				buf.put((byte) run).put(code);
+				i += run;
+			}
+		}
+		else
+		{
+			buf.put(RAW);
+			buf.put(tiles);
+		}
+		buf.flip();
+		return buf;
+	}
+
+	private static int countRuns(byte[] tiles)
+	{
+		int runs = 0;
+		int i = 0;
+		while (i < tiles.length)
+		{
+			int run = 1;
+			while (i + run < tiles.length && tiles[i + run] == tiles[i] && run < MAX_RUN)
+				run++;
+			runs++;
+			i += run;
+		}
+		return runs;
+	}
+
+	/**
+	 * Decodes a dungeon written by {@link #encode(Dungeon)}
+	 * @param buf the buffer holding the encoded dungeon
+	 * @return the dungeon
+	 * @throws IllegalArgumentException when the data is not a valid dungeon
+	 */
+	public static Dungeon decode(ByteBuffer buf) throws IllegalArgumentException
+	{
+		if (buf.remaining() < HEADER_SIZE)
+			throw new IllegalArgumentException("Dungeon header too short");
+		int cols = buf.getInt();
+		int rows = buf.getInt();
+		int floors = buf.getInt();
+		byte encoding = buf.get();
+		if (cols <= 0 || rows <= 0 || floors <= 0)
+			throw new IllegalArgumentException("Bad dungeon size " + cols + "x" + rows + "x" + floors);
+		byte[] tiles = new byte[cols * rows * floors];
+		if (encoding == RAW)
+		{
+			if (buf.remaining() < tiles.length)
+				throw new IllegalArgumentException("Dungeon data too short");
+			buf.get(tiles);
+		}
+		else if (encoding == RLE)
+		{
+			int i = 0;
+			while (i < tiles.length)
+			{
+				if (buf.remaining() < 2)
+					throw new IllegalArgumentException("Dungeon data too short");
+				int run = buf.get() & 0xFF;
+				byte code = buf.get();
+				if (run == 0 || i + run > tiles.length)
+					throw new IllegalArgumentException("Bad tile run " + run);
+				Arrays.fill(tiles, i, i + run, code);
+				i += run;
+			}
+		}
+		else
+		{
+			throw new IllegalArgumentException("Unknown dungeon encoding " + encoding);
+		}
+		for (byte code : tiles)
+		{
+			if (code < 0 || code >= Tile.values().length)
+				throw new IllegalArgumentException("Unknown tile " + code);
+		}
+		return new Dungeon(cols, rows, floors, tiles);
+	}
+}
@@ -0,0 +1,454 @@
+package com.tsp.game.map;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Builds the tiles of a {@link Dungeon} from a seed
+ * <p>Every floor starts out as wall and gets rectangular rooms carved into it until the
+ * share of floor tiles is in the band of its style, then more rooms of wall and floor
+ * are laid over it to roughen it up without leaving the band. The number of floor tiles
+ * is kept up to date while painting, so nothing is ever recounted or copied. The rooms
+ * of a floor are then joined by corridors and stairs are put between floors.</p>
+ * <p>Each floor draws from its own random sequence derived from the seed, so floors are
+ * built in parallel and the same seed always gives the same dungeon.</p>
+ */
+public class DungeonGenerator
+{
+	private static final byte FLOOR = Tile.EMPTY_FLOOR.code();
+	private static final byte WALL = Tile.WALL.code();
+	private static final byte STAIR_UP = Tile.STAIR_UP.code();
+	private static final byte STAIR_DOWN = Tile.STAIR_DOWN.code();
+	// Rooms are at most a third of the floor, but no bigger than this, so large maps get more rooms instead of huge ones
+	private static final int MAX_ROOM_SIDE = 32;
+	// Tries to put stairs at a random spot before falling back to a scan
+	private static final int STAIR_TRIES = 100;
+	// Floors smaller than this are not worth a thread
+	private static final int PARALLEL_AREA = 4096;
+	// Generates the floors of every dungeon, its threads are daemons
+	private static final ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+	private final long seed;
+
+	/**
+	 * Creates a generator
+	 * @param seed the seed, dungeons of the same size built from the same seed are the same
+	 */
+	public DungeonGenerator(long seed)
+	{
+		this.seed = seed;
+	}
+
+	public long getSeed()
+	{
+		return seed;
+	}
+
+	/**
+	 * Builds a dungeon
+	 * @param cols the number of columns
+	 * @param rows the number of rows
+	 * @param floors the number of floors
+	 * @return the tile codes indexed by {@link Dungeon#index(int, int, int)}
+	 */
+	public byte[] generate(final int cols, final int rows, int floors)
+	{
+		final byte[] tiles = new byte[floors * cols * rows];
+		// One seed per floor and one for the stairs, drawn through the mixer so the streams do not overlap
+		final long[] seeds = new long[floors + 1];
+		SplitMix mixer = new SplitMix(seed);
+		for (int i = 0; i < seeds.length; i++)
+		{
+			seeds[i] = mixer.nextLong();
+		}
+		if (cols * rows < PARALLEL_AREA)
+		{
+			for (int z = 0; z < floors; z++)
+			{
+				generateFloor(tiles, cols, rows, z, seeds[z]);
+			}
+		}
+		else
+		{
+			ArrayList<RecursiveAction> tasks = new ArrayList<RecursiveAction>(floors);
+			for (int z = 0; z < floors; z++)
+			{
+				final int floor = z;
+				tasks.add(new RecursiveAction()
+				{
+					@Override
+					protected void compute()
+					{
+						generateFloor(tiles, cols, rows, floor, seeds[floor]);
+					}
+				});
+			}
+			for (RecursiveAction task : tasks)
+			{
+				POOL.execute(task);
+			}
+			for (RecursiveAction task : tasks)
+			{
+				task.join();
+			}
+		}
+		placeStairs(tiles, cols, rows, floors, seeds[floors]);
+		return tiles;
+	}
+
+	private void generateFloor(byte[] tiles, int cols, int rows, int z, long floorSeed)
+	{
+		SplitMix random = new SplitMix(floorSeed);
+		// 50% chance of a mid floor, 25% of the other 2
+		double low, high;
+		if (random.nextDouble() > .5)
+		{
+			low = .35;
+			high = .40;
+		}
+		else if (random.nextDouble() > .5)
+		{
+			low = .42;
+			high = .47;
+		}
+		else
+		{
+			low = .27;
+			high = .33;
+		}
+		new FloorPainter(tiles, cols, rows, z, random).paint(low, high);
+	}
+
+	/**
+	 * Puts a stair up on every floor but the last, right below a stair down on the floor above it
+	 */
+	private void placeStairs(byte[] tiles, int cols, int rows, int floors, long stairSeed)
+	{
+		SplitMix random = new SplitMix(stairSeed);
+		int area = cols * rows;
+		for (int z = 0; z < floors - 1; z++)
+		{
+			int lower = z * area;
+			int upper = lower + area;
+			int cell = -1;
+			for (int i = 0; i < STAIR_TRIES && cell < 0; i++)
+			{
+				int candidate = random.nextInt(area);
+				if (tiles[lower + candidate] == FLOOR && tiles[upper + candidate] == FLOOR)
+					cell = candidate;
+			}
+			for (int candidate = 0; candidate < area && cell < 0; candidate++)
+			{
+				if (tiles[lower + candidate] == FLOOR && tiles[upper + candidate] == FLOOR)
+					cell = candidate;
+			}
+			// The floors do not overlap anywhere, take a floor tile below and dig to it from above
+			if (cell < 0)
+			{
+				cell = nearestFloor(tiles, rows, area, lower, random.nextInt(area));
+				if (cell < 0)
+					cell = random.nextInt(area);
+				int target = nearestFloor(tiles, rows, area, upper, cell);
+				if (target >= 0)
+					dig(tiles, rows, upper, cell, target);
+			}
+			tiles[lower + cell] = STAIR_UP;
+			tiles[upper + cell] = STAIR_DOWN;
+		}
+	}
+
+	/**
+	 * Finds the floor tile of a floor closest to a cell, walking the fewest tiles
+	 * @param offset where the floor starts in the tiles
+	 * @return the cell of the tile, -1 if the floor is all wall
+	 */
+	private static int nearestFloor(byte[] tiles, int rows, int area, int offset, int from)
+	{
+		int fromX = from / rows;
+		int fromY = from % rows;
+		int nearest = -1;
+		int best = Integer.MAX_VALUE;
+		for (int cell = 0; cell < area; cell++)
+		{
+			if (tiles[offset + cell] != FLOOR)
+				continue;
+			int distance = Math.abs(cell / rows - fromX) + Math.abs(cell % rows - fromY);
+			if (distance < best)
+			{
+				best = distance;
+				nearest = cell;
+			}
+		}
+		return nearest;
+	}
+
+	/**
+	 * Digs a corridor of floor from one cell to another, along the columns then the rows
+	 * @param offset where the floor starts in the tiles
+	 */
+	private static void dig(byte[] tiles, int rows, int offset, int from, int to)
+	{
+		int x1 = from / rows;
+		int y1 = from % rows;
+		int x2 = to / rows;
+		int y2 = to % rows;
+		while (x1 != x2 || y1 != y2)
+		{
+			tiles[offset + x1 * rows + y1] = FLOOR;
+			if (x1 != x2)
+				x1 += x1 > x2 ? -1 : 1;
+			else
+				y1 += y1 > y2 ? -1 : 1;
+		}
+	}
+
+	/**
+	 * Carves one floor, works on the slice of the dungeon tiles that belongs to it
+	 */
+	private static final class FloorPainter
+	{
+		private final byte[] tiles;
+		private final int cols;
+		private final int rows;
+		private final int offset;
+		private final int area;
+		private final SplitMix random;
+		private final int maxRoomCols;
+		private final int maxRoomRows;
+		private int floorCount = 0;
+
+		FloorPainter(byte[] tiles, int cols, int rows, int z, SplitMix random)
+		{
+			this.tiles = tiles;
+			this.cols = cols;
+			this.rows = rows;
+			this.random = random;
+			area = cols * rows;
+			offset = z * area;
+			maxRoomCols = Math.max(3, Math.min(cols / 3, MAX_ROOM_SIDE));
+			maxRoomRows = Math.max(3, Math.min(rows / 3, MAX_ROOM_SIDE));
+		}
+
+		void paint(double lowShare, double highShare)
+		{
+			Arrays.fill(tiles, offset, offset + area, WALL);
+			int low = (int) Math.ceil(lowShare * area);
+			int high = Math.max(low, (int) (highShare * area));
+			// The most rooms painted, a floor that can not hit the band is taken as it is
+			int budget = area * 2;
+			while (floorCount < low && budget-- > 0)
+			{
+				room(FLOOR);
+			}
+			// Roughen it up, then steer back into the band
+			for (int i = (cols + rows) / 2; i > 0; i--)
+			{
+				if (floorCount > high)
+					room(WALL);
+				else if (floorCount < low)
+					room(FLOOR);
+				else
+					room(random.nextDouble() > .5 ? WALL : FLOOR);
+			}
+			while ((floorCount < low || floorCount > high) && budget-- > 0)
+			{
+				room(floorCount < low ? FLOOR : WALL);
+			}
+			connect();
+		}
+
+		/**
+		 * Paints a room of random size growing from a random corner in a random direction
+		 */
+		private void room(byte code)
+		{
+			int roomCols = random.nextInt(maxRoomCols - 2) + 2;
+			int roomRows = random.nextInt(maxRoomRows - 2) + 2;
+			int x = random.nextInt(cols);
+			int y = random.nextInt(rows);
+			int x0 = random.nextDouble() > .5 ? x : x - roomCols + 1;
+			int y0 = random.nextDouble() > .5 ? y : y - roomRows + 1;
+			int x1 = Math.min(cols, x0 + roomCols);
+			int y1 = Math.min(rows, y0 + roomRows);
+			x0 = Math.max(0, x0);
+			y0 = Math.max(0, y0);
+			int delta = code == FLOOR ? 1 : -1;
+			for (int i = x0; i < x1; i++)
+			{
+				int start = offset + i * rows;
+				for (int j = start + y0; j < start + y1; j++)
+				{
+					if (tiles[j] != code)
+					{
+						tiles[j] = code;
+						floorCount += delta;
+					}
+				}
+			}
+		}
+
+		/**
+		 * Digs corridors between the separate areas of floor so every tile can be reached
+		 * <p>Every area is joined to the one found before it, from a random tile of each.</p>
+		 */
+		private void connect()
+		{
+			RoomManager manager = new RoomManager(cols, rows);
+			manager.label(tiles, offset);
+			int[] picks = manager.pickTiles(random);
+			for (int i = 1; i < picks.length; i++)
+			{
+				corridor(picks[i] / rows, picks[i] % rows, picks[i - 1] / rows, picks[i - 1] % rows);
+			}
+		}
+
+		private void corridor(int x1, int y1, int x2, int y2)
+		{
+			while (x1 != x2 || y1 != y2)
+			{
+				tiles[offset + x1 * rows + y1] = FLOOR;
+				if (x1 != x2)
+					x1 += x1 > x2 ? -1 : 1;
+				else
+					y1 += y1 > y2 ? -1 : 1;
+			}
+		}
+	}
+
+	/**
+	 * Finds the separate areas of floor of one floor, a union-find over its tiles
+	 * <p>One pass joins every floor tile with the floor tiles left of and above it, after
+	 * which every area is a set named by its root tile. Sets are joined by size and paths
+	 * are halved while looking up roots, so the whole floor is labelled in close to linear
+	 * time.</p>
+	 */
+	private static final class RoomManager
+	{
+		private final int rows;
+		private final int area;
+		// The parent of every tile in its set, -1 for walls, tiles are indexed x * rows + y
+		private final int[] parent;
+		// The size of every set, only meaningful for roots
+		private final int[] size;
+
+		RoomManager(int cols, int rows)
+		{
+			this.rows = rows;
+			area = cols * rows;
+			parent = new int[area];
+			size = new int[area];
+		}
+
+		/**
+		 * Sorts the floor tiles of a floor into areas
+		 * @param tiles the dungeon tiles
+		 * @param offset where the floor starts in them
+		 */
+		void label(byte[] tiles, int offset)
+		{
+			for (int cell = 0; cell < area; cell++)
+			{
+				if (tiles[offset + cell] != FLOOR)
+				{
+					parent[cell] = -1;
+					continue;
+				}
+				parent[cell] = cell;
+				size[cell] = 1;
+				if (cell >= rows && parent[cell - rows] >= 0)
+					union(cell, cell - rows);
+				if (cell % rows != 0 && parent[cell - 1] >= 0)
+					union(cell, cell - 1);
+			}
+		}
+
+		/**
+		 * Picks a random tile of every area
+		 * @param random where the picks come from
+		 * @return one tile per area, in the order the areas were first seen
+		 */
+		int[] pickTiles(SplitMix random)
+		{
+			// Reservoir sampling, seen[root] counts the tiles of the area met so far
+			int[] seen = new int[area];
+			int[] pick = new int[area];
+			int[] roots = new int[area];
+			int count = 0;
+			for (int cell = 0; cell < area; cell++)
+			{
+				if (parent[cell] < 0)
+					continue;
+				int root = find(cell);
+				if (seen[root] == 0)
+					roots[count++] = root;
+				if (random.nextInt(++seen[root]) == 0)
+					pick[root] = cell;
+			}
+			int[] picks = new int[count];
+			for (int i = 0; i < count; i++)
+			{
+				picks[i] = pick[roots[i]];
+			}
+			return picks;
+		}
+
+		private int find(int cell)
+		{
+			while (parent[cell] != cell)
+			{
+				parent[cell] = parent[parent[cell]];
+				cell = parent[cell];
+			}
+			return cell;
+		}
+
+		private void union(int a, int b)
+		{
+			a = find(a);
+			b = find(b);
+			if (a == b)
+				return;
+			if (size[a] < size[b])
+			{
+				int swap = a;
+				a = b;
+				b = swap;
+			}
+			parent[b] = a;
+			size[a] += size[b];
+		}
+	}
+
+	/**
+	 * A small, fast generator (SplitMix64), one per floor so floors never share state
+	 */
+	private static final class SplitMix
+	{
+		private long state;
+
+		SplitMix(long seed)
+		{
+			state = seed;
+		}
+
+		long nextLong()
+		{
+			long z = (state += 0x9E3779B97F4A7C15L);
+			z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+			z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+			return z ^ (z >>> 31);
+		}
+
+		int nextInt(int bound)
+		{
+			return (int) (((nextLong() >>> 33) * bound) >>> 31);
+		}
+
+		double nextDouble()
+		{
+			return (nextLong() >>> 11) * 0x1.0p-53;
+		}
+	}
+}
@@ -0,0 +1,262 @@
+package com.tsp.game.map;
+
+import java.util.Arrays;
+
+/**
+ * The tiles one player has seen so far, one bit per tile
+ * <p>Every long holds an 8 by 8 block of tiles, and only the blocks with something
+ * explored in them are kept, per floor in parallel arrays sorted by block index. What a
+ * player explored around where it walked sits in a few blocks, so the map costs a few
+ * hundred bytes however large the dungeon is, and is sent as just those blocks.</p>
+ * <p>Updates and reads are synchronized, a map is updated by the tick of the floor its
+ * player is on and read when the player reconnects.</p>
+ */
+public class ExploredMap
+{
+	private static final int BLOCK = 8;
+
+	private final int cols;
+	private final int rows;
+	private final int blocksDown;
+	private final int blocksPerFloor;
+	// Per floor, the index bx * blocksDown + by of every kept block and its bits, the first
+	// counts[z] are valid, null for floors never seen
+	private final int[][] indexes;
+	private final long[][] bits;
+	private final int[] counts;
+
+	/**
+	 * Creates a map where nothing has been explored
+	 * @param cols the number of columns of the dungeon
+	 * @param rows the number of rows of the dungeon
+	 * @param floors the number of floors of the dungeon
+	 */
+	public ExploredMap(int cols, int rows, int floors)
+	{
+		this.cols = cols;
+		this.rows = rows;
+		blocksDown = (rows + BLOCK - 1) / BLOCK;
+		blocksPerFloor = ((cols + BLOCK - 1) / BLOCK) * blocksDown;
+		indexes = new int[floors][];
+		bits = new long[floors][];
+		counts = new int[floors];
+	}
+
+	public int getColumns()
+	{
+		return cols;
+	}
+
+	public int getRows()
+	{
+		return rows;
+	}
+
+	public int getFloors()
+	{
+		return counts.length;
+	}
+
+	/**
+	 * Gets the number of blocks of one floor
+	 * @return one more than the highest block index
+	 */
+	public int getBlocksPerFloor()
+	{
+		return blocksPerFloor;
+	}
+
+	/**
+	 * Marks everything in view as explored
+	 * @param view the field of view of the player
+	 */
+	public synchronized void add(FieldOfView view)
+	{
+		int z = view.getZ();
+		if (z < 0 || z >= counts.length)
+			return;
+		// The tiles of a column mostly fall in the same block as the one before
+		int block = -1;
+		int slot = -1;
+		for (int x = view.getMinX(); x <= view.getMaxX(); x++)
+		{
+			for (int y = view.getMinY(); y <= view.getMaxY(); y++)
+			{
+				if (!view.isVisible(x, y, z))
+					continue;
+				if (block(x, y) != block)
+				{
+					block = block(x, y);
+					slot = slot(z, block);
+				}
+				bits[z][slot] |= 1L << bit(x, y);
+			}
+		}
+	}
+
+	/**
+	 * Checks if a tile was explored
+	 */
+	public synchronized boolean isExplored(int x, int y, int z)
+	{
+		if (z < 0 || z >= counts.length || x < 0 || x >= cols || y < 0 || y >= rows)
+			return false;
+		int at = find(z, block(x, y));
+		return at >= 0 && (bits[z][at] & (1L << bit(x, y))) != 0;
+	}
+
+	/**
+	 * Checks if nothing was explored yet
+	 * @return true for a new player
+	 */
+	public synchronized boolean isEmpty()
+	{
+		for (int count : counts)
+		{
+			if (count > 0)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Gets the number of blocks with something explored in them
+	 * @param z the floor
+	 */
+	public synchronized int getBlockCount(int z)
+	{
+		return counts[z];
+	}
+
+	/**
+	 * Gets the index of a block with something explored in it
+	 * @param z the floor
+	 * @param i the block, from 0 to {@link #getBlockCount(int)}, in increasing index order
+	 */
+	public synchronized int getBlockIndex(int z, int i)
+	{
+		return indexes[z][i];
+	}
+
+	/**
+	 * Gets the explored tiles of a block with something explored in it
+	 * @param z the floor
+	 * @param i the block, from 0 to {@link #getBlockCount(int)}, in increasing index order
+	 */
+	public synchronized long getBlockBits(int z, int i)
+	{
+		return bits[z][i];
+	}
+
+	/**
+	 * Marks a block of tiles as explored, used when reading a map sent by the server
+	 * @param z the floor
+	 * @param block the index of the block
+	 * @param bits the explored tiles of the block
+	 */
+	public synchronized void addBlock(int z, int block, long bits)
+	{
+		if (z < 0 || z >= counts.length || block < 0 || block >= blocksPerFloor)
+			throw new IllegalArgumentException("No block " + block + " on floor " + z);
+		if (bits == 0)
+			return;
+		int at = slot(z, block);
+		this.bits[z][at] |= bits;
+	}
+
+	/**
+	 * Copies the map, so it can be read while the original keeps changing
+	 * @return the copy
+	 */
+	public synchronized ExploredMap copy()
+	{
+		ExploredMap copy = new ExploredMap(cols, rows, counts.length);
+		for (int z = 0; z < counts.length; z++)
+		{
+			if (counts[z] == 0)
+				continue;
+			copy.indexes[z] = Arrays.copyOf(indexes[z], counts[z]);
+			copy.bits[z] = Arrays.copyOf(bits[z], counts[z]);
+			copy.counts[z] = counts[z];
+		}
+		return copy;
+	}
+
+	/**
+	 * Reveals the explored tiles in a dungeon of the same size
+	 * @param dungeon the dungeon
+	 */
+	public synchronized void revealIn(Dungeon dungeon)
+	{
+		for (int z = 0; z < counts.length && z < dungeon.getFloors(); z++)
+		{
+			for (int i = 0; i < counts[z]; i++)
+			{
+				int left = indexes[z][i] / blocksDown * BLOCK;
+				int top = indexes[z][i] % blocksDown * BLOCK;
+				long block = bits[z][i];
+				while (block != 0)
+				{
+					int bit = Long.numberOfTrailingZeros(block);
+					block &= block - 1;
+					int x = left + bit / BLOCK;
+					int y = top + bit % BLOCK;
+					if (x < dungeon.getColumns() && y < dungeon.getRows())
+					{
+						int index = dungeon.index(x, y, z);
+						dungeon.visible[index >>> 6] |= 1L << index;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Finds a kept block
+	 * @return where it is in the arrays of the floor, negative if it is not kept
+	 */
+	private int find(int z, int block)
+	{
+		if (counts[z] == 0)
+			return -1;
+		return Arrays.binarySearch(indexes[z], 0, counts[z], block);
+	}
+
+	/**
+	 * Finds a block, keeping it first if it was not
+	 * @return where it is in the arrays of the floor
+	 */
+	private int slot(int z, int block)
+	{
+		int at = find(z, block);
+		if (at >= 0)
+			return at;
+		at = counts[z] == 0 ? 0 : -at - 1;
+		if (indexes[z] == null)
+		{
+			indexes[z] = new int[4];
+			bits[z] = new long[4];
+		}
+		else if (counts[z] == indexes[z].length)
+		{
+			indexes[z] = Arrays.copyOf(indexes[z], counts[z] * 2);
+			bits[z] = Arrays.copyOf(bits[z], counts[z] * 2);
+		}
+		System.arraycopy(indexes[z], at, indexes[z], at + 1, counts[z] - at);
+		System.arraycopy(bits[z], at, bits[z], at + 1, counts[z] - at);
+		indexes[z][at] = block;
+		bits[z][at] = 0;
+		counts[z]++;
+		return at;
+	}
+
+	private int block(int x, int y)
+	{
+		return (x / BLOCK) * blocksDown + y / BLOCK;
+	}
+
+	private static int bit(int x, int y)
+	{
+		return (x % BLOCK) * BLOCK + y % BLOCK;
+	}
+}
@@ -0,0 +1,250 @@
+package com.tsp.game.map;
+
+/**
+ * What one player can see of its floor, computed by recursive shadowcasting
+ * <p>Light spreads from the player over the eight octants around it and stops at walls,
+ * the walls themselves are lit. Only tiles within the fog of war radius of the dungeon
+ * are looked at, so the work depends on the radius and not on the size of the map.</p>
+ * <p>The result is kept in a bitset over one floor, same layout as the tiles of the
+ * floor, which is reused every time. Nothing is recomputed while the player stands
+ * still. Not thread safe, every player has its own.</p>
+ */
+public class FieldOfView
+{
+	// Maps the octant being scanned onto the grid, one column per octant
+	private static final int[] XX = {1, 0, 0, -1, -1, 0, 0, 1};
+	private static final int[] XY = {0, 1, -1, 0, 0, -1, 1, 0};
+	private static final int[] YX = {0, 1, 1, 0, 0, -1, -1, 0};
+	private static final int[] YY = {1, 0, 0, 1, -1, 0, 0, -1};
+
+	private final Dungeon dungeon;
+	private final byte[] tiles;
+	private final int cols;
+	private final int rows;
+	private final int width;
+	private final int height;
+	private final double reach;
+	private final int radius;
+	// One bit per tile of the current floor, indexed x * rows + y
+	private final long[] bits;
+	private int originX = -1;
+	private int originY = -1;
+	private int originZ = -1;
+	// The area touched by the last scan, cleared before the next one
+	private int minX;
+	private int maxX;
+	private int minY;
+	private int maxY;
+
+	/**
+	 * Creates an empty field of view, the radius is the fog of war of the dungeon
+	 * @param dungeon the dungeon
+	 */
+	public FieldOfView(Dungeon dungeon)
+	{
+		this.dungeon = dungeon;
+		tiles = dungeon.getTiles();
+		cols = dungeon.getColumns();
+		rows = dungeon.getRows();
+		width = dungeon.getFogOfWarWidth();
+		height = dungeon.getFogOfWarHeight();
+		reach = (width + height) / 2.0;
+		radius = Math.max(width, (int) Math.ceil(reach));
+		bits = new long[(cols * rows + 63) >>> 6];
+	}
+
+	/**
+	 * Recomputes the field of view if the player moved
+	 * @param x the column the player is in
+	 * @param y the row the player is in
+	 * @param z the floor the player is on
+	 * @return true if the view was recomputed
+	 */
+	public boolean update(int x, int y, int z)
+	{
+		if (x == originX && y == originY && z == originZ)
+			return false;
+		clear();
+		originX = x;
+		originY = y;
+		originZ = z;
+		if (!dungeon.validPoint(x, y, z))
+			return true;
+		minX = maxX = x;
+		minY = maxY = y;
+		light(x, y);
+		for (int octant = 0; octant < 8; octant++)
+		{
+			castLight(1, 1.0, 0.0, XX[octant], XY[octant], YX[octant], YY[octant]);
+		}
+		return true;
+	}
+
+	/**
+	 * Forgets the last position, the next update recomputes
+	 */
+	public void invalidate()
+	{
+		clear();
+		originX = originY = originZ = -1;
+	}
+
+	/**
+	 * Checks if a tile is in view
+	 * @return false for tiles on other floors
+	 */
+	public boolean isVisible(int x, int y, int z)
+	{
+		if (z != originZ || x < 0 || x >= cols || y < 0 || y >= rows)
+			return false;
+		int cell = x * rows + y;
+		return (bits[cell >>> 6] & (1L << cell)) != 0;
+	}
+
+	public int getZ()
+	{
+		return originZ;
+	}
+
+	/**
+	 * Gets the first column of the area the view was computed in, every visible tile is
+	 * inside the area
+	 */
+	public int getMinX()
+	{
+		return minX;
+	}
+
+	public int getMaxX()
+	{
+		return maxX;
+	}
+
+	public int getMinY()
+	{
+		return minY;
+	}
+
+	public int getMaxY()
+	{
+		return maxY;
+	}
+
+	/**
+	 * Sets the bits of the tiles in view in a bitset over the whole dungeon
+	 * @param target one bit per tile, indexed by {@link Dungeon#index(int, int, int)}
+	 */
+	public void mergeInto(long[] target)
+	{
+		if (originZ < 0)
+			return;
+		for (int x = minX; x <= maxX; x++)
+		{
+			for (int y = minY; y <= maxY; y++)
+			{
+				int cell = x * rows + y;
+				if ((bits[cell >>> 6] & (1L << cell)) != 0)
+				{
+					int index = dungeon.index(x, y, originZ);
+					target[index >>> 6] |= 1L << index;
+				}
+			}
+		}
+	}
+
+	private void clear()
+	{
+		if (originZ < 0)
+			return;
+		for (int x = minX; x <= maxX; x++)
+		{
+			for (int y = minY; y <= maxY; y++)
+			{
+				int cell = x * rows + y;
+				bits[cell >>> 6] &= ~(1L << cell);
+			}
+		}
+	}
+
+	/**
+	 * Scans one octant row by row, starting over past every wall, see
+	 * <a href="http://www.roguebasin.com/index.php?title=FOV_using_recursive_shadowcasting">recursive shadowcasting</a>
+	 */
+	private void castLight(int row, double start, double end, int xx, int xy, int yx, int yy)
+	{
+		if (start < end)
+			return;
+		double newStart = 0.0;
+		for (int distance = row; distance <= radius; distance++)
+		{
+			boolean blocked = false;
+			int dy = -distance;
+			for (int dx = -distance; dx <= 0; dx++)
+			{
+				double leftSlope = (dx - 0.5) / (dy + 0.5);
+				double rightSlope = (dx + 0.5) / (dy - 0.5);
+				if (start < rightSlope)
+					continue;
+				if (end > leftSlope)
+					break;
+
+				int offsetX = dx * xx + dy * xy;
+				int offsetY = dx * yx + dy * yy;
+				int x = originX + offsetX;
+				int y = originY + offsetY;
+				boolean inside = x >= 0 && x < cols && y >= 0 && y < rows;
+				if (inside && inRange(offsetX, offsetY))
+					light(x, y);
+
+				boolean opaque = !inside || tiles[dungeon.index(x, y, originZ)] == Tile.WALL.code();
+				if (blocked)
+				{
+					if (opaque)
+					{
+						newStart = rightSlope;
+					}
+					else
+					{
+						blocked = false;
+						start = newStart;
+					}
+				}
+				else if (opaque && distance < radius)
+				{
+					blocked = true;
+					castLight(distance + 1, start, leftSlope, xx, xy, yx, yy);
+					newStart = rightSlope;
+				}
+			}
+			if (blocked)
+				break;
+		}
+	}
+
+	/**
+	 * The shape of the fog of war: a box of the fog width by height, rounded off by a
+	 * circle of their average
+	 */
+	private boolean inRange(int dx, int dy)
+	{
+		dx = Math.abs(dx);
+		dy = Math.abs(dy);
+		if (dx < width && dy < height)
+			return true;
+		return (dx < width || dy < height) && dx * dx + dy * dy < reach * reach;
+	}
+
+	private void light(int x, int y)
+	{
+		int cell = x * rows + y;
+		bits[cell >>> 6] |= 1L << cell;
+		if (x < minX)
+			minX = x;
+		if (x > maxX)
+			maxX = x;
+		if (y < minY)
+			minY = y;
+		if (y > maxY)
+			maxY = y;
+	}
+}
@@ -0,0 +1,117 @@
+package com.tsp.game.map;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The open floor tiles of a {@link Dungeon} nobody stands on, per floor
+ * <p>Every floor keeps its free tiles packed in an array, and every tile remembers where
+ * it is in that array, so a random free tile is picked with one read, and a tile is taken
+ * out or put back by swapping it with the last one. Stairs are never free, and the tiles
+ * are those of the dungeon when the index was created.</p>
+ * <p>Tiles within a floor are named x * rows + y, like in the {@link com.tsp.game.actors.SpatialIndex}
+ * which takes tiles out and puts them back as actors move. Not thread safe, but like the
+ * spatial index every floor can be owned by a different thread.</p>
+ */
+public class FreeTileIndex
+{
+	private static final byte FLOOR = Tile.EMPTY_FLOOR.code();
+
+	private final int rows;
+	// The free tiles of every floor, the first count[z] of them are valid
+	private final int[][] free;
+	private final int[] count;
+	// Where every tile is in free, -1 if it is not free
+	private final int[][] slot;
+	private final byte[] tiles;
+	private final int area;
+
+	/**
+	 * Creates an index with every open floor tile of a dungeon free
+	 * @param dungeon the dungeon
+	 */
+	public FreeTileIndex(Dungeon dungeon)
+	{
+		rows = dungeon.getRows();
+		area = dungeon.getColumns() * rows;
+		tiles = dungeon.getTiles();
+		int floors = dungeon.getFloors();
+		free = new int[floors][];
+		count = new int[floors];
+		slot = new int[floors][];
+		for (int z = 0; z < floors; z++)
+		{
+			int offset = z * area;
+			int open = 0;
+			for (int cell = 0; cell < area; cell++)
+			{
+				if (tiles[offset + cell] == FLOOR)
+					open++;
+			}
+			free[z] = new int[open];
+			slot[z] = new int[area];
+			for (int cell = 0; cell < area; cell++)
+			{
+				if (tiles[offset + cell] == FLOOR)
+				{
+					slot[z][cell] = count[z];
+					free[z][count[z]++] = cell;
+				}
+				else
+				{
+					slot[z][cell] = -1;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Marks a tile as taken, nothing happens if it was not free
+	 * @param z the floor
+	 * @param cell the tile within the floor
+	 */
+	public void occupy(int z, int cell)
+	{
+		int at = slot[z][cell];
+		if (at < 0)
+			return;
+		int last = free[z][--count[z]];
+		free[z][at] = last;
+		slot[z][last] = at;
+		slot[z][cell] = -1;
+	}
+
+	/**
+	 * Marks a tile as free again, nothing happens if it is already free or not open floor
+	 * @param z the floor
+	 * @param cell the tile within the floor
+	 */
+	public void release(int z, int cell)
+	{
+		// Floor dug out since the index was created has no room in it
+		if (slot[z][cell] >= 0 || tiles[z * area + cell] != FLOOR || count[z] == free[z].length)
+			return;
+		slot[z][cell] = count[z];
+		free[z][count[z]++] = cell;
+	}
+
+	/**
+	 * Picks a random free tile of a floor
+	 * @param z the floor
+	 * @return the point, null if the floor is full
+	 */
+	public Point3D random(int z)
+	{
+		if (count[z] == 0)
+			return null;
+		int cell = free[z][ThreadLocalRandom.current().nextInt(count[z])];
+		return new Point3D(cell / rows, cell % rows, z);
+	}
+
+	/**
+	 * Gets the number of free tiles on a floor
+	 */
+	public int size(int z)
+	{
+		return count[z];
+	}
+}
@@ -0,0 +1,396 @@
+package com.tsp.game.map;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Finds ways through a {@link Dungeon}, across floors by the stairs
+ * <p>Works on the tile codes of the dungeon, tiles are named by their
+ * {@link Dungeon#index(int, int, int)}. Actors move one tile up, down, left or right, and a
+ * stair up leads to the tile above it on the next floor, a stair down to the one below.
+ * Actors are not obstacles, only walls are.</p>
+ * <p>{@link #findPath(int, int, int, int[])} runs an A* search for one trip. Its buffers are
+ * kept per thread and reused. {@link #getFlowField(int)} gives the distance of every tile
+ * around a target to it, so any number of actors going to the same tile share a single
+ * search. Flow fields are cached until the tiles of the dungeon change.</p>
+ * <p>Safe to use from several threads at once.</p>
+ */
+public class PathFinder
+{
+	private static final byte FLOOR = Tile.EMPTY_FLOOR.code();
+	private static final byte STAIR_UP = Tile.STAIR_UP.code();
+	private static final byte STAIR_DOWN = Tile.STAIR_DOWN.code();
+	// Flow fields kept for the most recent targets
+	private static final int CACHED_FIELDS = 64;
+
+	private final Dungeon dungeon;
+	private final byte[] tiles;
+	private final int cols;
+	private final int rows;
+	private final int floors;
+	private final int area;
+	private final int fieldRadius;
+	// Guarded by itself
+	private final Map<Integer, FlowField> fields = new LinkedHashMap<Integer, FlowField>(16, 0.75f, true)
+	{
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, FlowField> eldest)
+		{
+			return size() > CACHED_FIELDS;
+		}
+	};
+	private final ThreadLocal<Search> searches = new ThreadLocal<Search>()
+	{
+		@Override
+		protected Search initialValue()
+		{
+			return new Search(tiles.length);
+		}
+	};
+
+	/**
+	 * Creates a path finder
+	 * @param dungeon the dungeon
+	 * @param fieldRadius how far from their target flow fields reach, in columns and rows
+	 */
+	public PathFinder(Dungeon dungeon, int fieldRadius)
+	{
+		this.dungeon = dungeon;
+		this.fieldRadius = fieldRadius;
+		tiles = dungeon.getTiles();
+		cols = dungeon.getColumns();
+		rows = dungeon.getRows();
+		floors = dungeon.getFloors();
+		area = cols * rows;
+	}
+
+	/**
+	 * Checks if an actor can stand on a tile
+	 * @param cell the index of the tile
+	 */
+	public boolean isWalkable(int cell)
+	{
+		byte tile = tiles[cell];
+		return tile == FLOOR || tile == STAIR_UP || tile == STAIR_DOWN;
+	}
+
+	/**
+	 * Finds a shortest way between two tiles
+	 * @param from the index of the first tile
+	 * @param to the index of the last tile
+	 * @param maxLength the most steps the way may take, searching stops past it
+	 * @param path where the tiles of the way are put, from the first step to the last tile,
+	 *             null if only the length is wanted
+	 * @return the number of steps, 0 if from is to, -1 if there is no way short enough or it
+	 * does not fit in path
+	 */
+	public int findPath(int from, int to, int maxLength, int[] path)
+	{
+		if (from == to)
+			return 0;
+		if (!isWalkable(from) || !isWalkable(to))
+			return -1;
+		Search search = searches.get();
+		int length = search.run(from, to, maxLength);
+		if (length <= 0 || path == null)
+			return length;
+		if (length > path.length)
+			return -1;
+		int cell = to;
+		for (int i = length - 1; i >= 0; i--)
+		{
+			path[i] = cell;
+			cell = search.cameFrom[cell];
+		}
+		return length;
+	}
+
+	/**
+	 * Gets the distances to a tile, computing them if no field for the tile is cached
+	 * @param target the index of the tile
+	 * @return the field, shared with every other caller asking for the same target
+	 */
+	public FlowField getFlowField(int target)
+	{
+		int version = dungeon.getTileVersion();
+		synchronized (fields)
+		{
+			FlowField field = fields.get(target);
+			if (field != null && field.version == version)
+				return field;
+		}
+		// Built outside the lock, two callers may both build it, which is harmless
+		FlowField field = new FlowField(target, version);
+		synchronized (fields)
+		{
+			fields.put(target, field);
+		}
+		return field;
+	}
+
+	/**
+	 * Finds the walkable tiles one step away from a tile, stairs included
+	 * @param cell the index of the tile
+	 * @param out where the neighbours are put, room for 5
+	 * @return the number of neighbours written to out
+	 */
+	private int neighbours(int cell, int[] out)
+	{
+		int count = 0;
+		int inFloor = cell % area;
+		int x = inFloor / rows;
+		int y = inFloor % rows;
+		if (x > 0 && isWalkable(cell - rows))
+			out[count++] = cell - rows;
+		if (x < cols - 1 && isWalkable(cell + rows))
+			out[count++] = cell + rows;
+		if (y > 0 && isWalkable(cell - 1))
+			out[count++] = cell - 1;
+		if (y < rows - 1 && isWalkable(cell + 1))
+			out[count++] = cell + 1;
+		int z = cell / area;
+		if (tiles[cell] == STAIR_UP && z < floors - 1 && isWalkable(cell + area))
+			out[count++] = cell + area;
+		else if (tiles[cell] == STAIR_DOWN && z > 0 && isWalkable(cell - area))
+			out[count++] = cell - area;
+		return count;
+	}
+
+	/**
+	 * A lower bound of the steps between two tiles, stairs do not change x and y
+	 */
+	private int estimate(int a, int b)
+	{
+		int za = a / area;
+		int zb = b / area;
+		a %= area;
+		b %= area;
+		return Math.abs(a / rows - b / rows) + Math.abs(a % rows - b % rows) + Math.abs(za - zb);
+	}
+
+	/**
+	 * The buffers of one A* search, reused by every search of one thread
+	 * <p>Tiles are only valid for the search whose number is in their stamp, so nothing has
+	 * to be cleared between searches.</p>
+	 */
+	private final class Search
+	{
+		final int[] cameFrom;
+		final int[] cost;
+		final int[] stamp;
+		int[] heap;
+		int[] priority;
+		final int[] around = new int[5];
+		int heapSize;
+		int current = 0;
+
+		Search(int size)
+		{
+			cameFrom = new int[size];
+			cost = new int[size];
+			stamp = new int[size];
+			heap = new int[size];
+			priority = new int[size];
+		}
+
+		int run(int from, int to, int maxLength)
+		{
+			if (++current == 0)
+			{
+				Arrays.fill(stamp, 0);
+				current = 1;
+			}
+			heapSize = 0;
+			stamp[from] = current;
+			cost[from] = 0;
+			push(from, estimate(from, to));
+			while (heapSize > 0)
+			{
+				int cell = pop();
+				if (cell == to)
+					return cost[cell];
+				int next = cost[cell] + 1;
+				if (next > maxLength)
+					continue;
+				int count = neighbours(cell, around);
+				for (int i = 0; i < count; i++)
+				{
+					int n = around[i];
+					if (stamp[n] == current && cost[n] <= next)
+						continue;
+					stamp[n] = current;
+					cost[n] = next;
+					cameFrom[n] = cell;
+					push(n, next + estimate(n, to));
+				}
+			}
+			return -1;
+		}
+
+		// A binary heap of tiles by priority, a tile may be in it more than once, stale copies
+		// come out after the fresh one and find nothing better to do, grows when it has to
+		private void push(int cell, int f)
+		{
+			if (heapSize == heap.length)
+			{
+				heap = Arrays.copyOf(heap, heapSize * 2);
+				priority = Arrays.copyOf(priority, heapSize * 2);
+			}
+			int i = heapSize++;
+			while (i > 0)
+			{
+				int parent = (i - 1) >>> 1;
+				if (priority[parent] <= f)
+					break;
+				heap[i] = heap[parent];
+				priority[i] = priority[parent];
+				i = parent;
+			}
+			heap[i] = cell;
+			priority[i] = f;
+		}
+
+		private int pop()
+		{
+			int top = heap[0];
+			int cell = heap[--heapSize];
+			int f = priority[heapSize];
+			int i = 0;
+			while (true)
+			{
+				int child = 2 * i + 1;
+				if (child >= heapSize)
+					break;
+				if (child + 1 < heapSize && priority[child + 1] < priority[child])
+					child++;
+				if (priority[child] >= f)
+					break;
+				heap[i] = heap[child];
+				priority[i] = priority[child];
+				i = child;
+			}
+			heap[i] = cell;
+			priority[i] = f;
+			return top;
+		}
+	}
+
+	/**
+	 * The number of steps from every tile near a target to it, found by one breadth first
+	 * search out from the target
+	 * <p>Covers the columns and rows within the field radius of the target on every floor.
+	 * Immutable once built.</p>
+	 */
+	public final class FlowField
+	{
+		private final int target;
+		private final int version;
+		private final int minX;
+		private final int minY;
+		private final int width;
+		private final int height;
+		// Steps to the target, -1 for tiles it can not be reached from, indexed [z][x][y] in the window
+		private final int[] distance;
+
+		private FlowField(int target, int version)
+		{
+			this.target = target;
+			this.version = version;
+			int inFloor = target % area;
+			int x = inFloor / rows;
+			int y = inFloor % rows;
+			minX = Math.max(0, x - fieldRadius);
+			minY = Math.max(0, y - fieldRadius);
+			width = Math.min(cols - 1, x + fieldRadius) - minX + 1;
+			height = Math.min(rows - 1, y + fieldRadius) - minY + 1;
+			distance = new int[floors * width * height];
+			Arrays.fill(distance, -1);
+			if (isWalkable(target))
+				fill();
+		}
+
+		private void fill()
+		{
+			int[] queue = new int[distance.length];
+			int[] around = new int[5];
+			int head = 0;
+			int tail = 0;
+			distance[slot(target)] = 0;
+			queue[tail++] = target;
+			while (head < tail)
+			{
+				int cell = queue[head++];
+				int next = distance[slot(cell)] + 1;
+				int count = neighbours(cell, around);
+				for (int i = 0; i < count; i++)
+				{
+					int slot = slot(around[i]);
+					if (slot >= 0 && distance[slot] < 0)
+					{
+						distance[slot] = next;
+						queue[tail++] = around[i];
+					}
+				}
+			}
+		}
+
+		/**
+		 * Gets where a tile is in the window, -1 if it is outside
+		 */
+		private int slot(int cell)
+		{
+			int z = cell / area;
+			int inFloor = cell % area;
+			int x = inFloor / rows - minX;
+			int y = inFloor % rows - minY;
+			if (x < 0 || x >= width || y < 0 || y >= height)
+				return -1;
+			return (z * width + x) * height + y;
+		}
+
+		public int getTarget()
+		{
+			return target;
+		}
+
+		/**
+		 * Gets the number of steps from a tile to the target
+		 * @param cell the index of the tile
+		 * @return the steps, -1 if the target can not be reached within the field
+		 */
+		public int distance(int cell)
+		{
+			int slot = slot(cell);
+			return slot < 0 ? -1 : distance[slot];
+		}
+
+		/**
+		 * Gets the first step from a tile towards the target
+		 * @param cell the index of the tile
+		 * @return the index of the next tile, -1 if the target can not be reached or the tile is the target
+		 */
+		public int next(int cell)
+		{
+			int here = distance(cell);
+			if (here <= 0)
+				return -1;
+			int inFloor = cell % area;
+			int x = inFloor / rows;
+			int y = inFloor % rows;
+			if (x > 0 && distance(cell - rows) == here - 1)
+				return cell - rows;
+			if (x < cols - 1 && distance(cell + rows) == here - 1)
+				return cell + rows;
+			if (y > 0 && distance(cell - 1) == here - 1)
+				return cell - 1;
+			if (y < rows - 1 && distance(cell + 1) == here - 1)
+				return cell + 1;
+			if (tiles[cell] == STAIR_UP && cell + area < tiles.length && distance(cell + area) == here - 1)
+				return cell + area;
+			if (tiles[cell] == STAIR_DOWN && cell >= area && distance(cell - area) == here - 1)
+				return cell - area;
+			return -1;
+		}
+	}
+}
@@ -14,6 +14,9 @@ public class Point3D extends Point
 	 *
 	 */
 	private static final long serialVersionUID = 254380063536084963L;
+	// Bits per coordinate of a packed point, x on top, then y, then z
+	private static final int PACKED_BITS = 21;
+	private static final long PACKED_MASK = (1L << PACKED_BITS) - 1;
 
 	private int z;
 
@@ -44,6 +47,58 @@ public class Point3D extends Point
 		this.z += amount;
 	}
 
+	/**
+	 * Moves the point, without allocating like {@link #clone()} and friends
+	 */
+	public void setLocation(int x, int y, int z)
+	{
+		this.x = x;
+		this.y = y;
+		this.z = z;
+	}
+
+	/**
+	 * Checks if the point is at the given coordinates, without allocating a point to compare to
+	 */
+	public boolean isAt(int x, int y, int z)
+	{
+		return this.x == x && this.y == y && this.z == z;
+	}
+
+	/**
+	 * Gets the point packed into a long, see {@link #pack(int, int, int)}
+	 */
+	public long pack()
+	{
+		return pack(x, y, z);
+	}
+
+	/**
+	 * Packs coordinates into a long, so points can be kept in primitive fields and arrays
+	 * <p>Each coordinate keeps 21 bits with its sign, anything from -1048576 to 1048575
+	 * comes back out of {@link #unpackX(long)}, {@link #unpackY(long)} and
+	 * {@link #unpackZ(long)} as it went in. Two points are equal if their packed values are.</p>
+	 */
+	public static long pack(int x, int y, int z)
+	{
+		return (x & PACKED_MASK) << (2 * PACKED_BITS) | (y & PACKED_MASK) << PACKED_BITS | (z & PACKED_MASK);
+	}
+
+	public static int unpackX(long packed)
+	{
+		return (int) (packed << (64 - 3 * PACKED_BITS) >> (64 - PACKED_BITS));
+	}
+
+	public static int unpackY(long packed)
+	{
+		return (int) (packed << (64 - 2 * PACKED_BITS) >> (64 - PACKED_BITS));
+	}
+
+	public static int unpackZ(long packed)
+	{
+		return (int) (packed << (64 - PACKED_BITS) >> (64 - PACKED_BITS));
+	}
+
 	@Override
 	public Point3D clone()
 	{
@@ -0,0 +1,75 @@
+package com.tsp.game.map;
+
+/**
+ * The kinds of tiles a {@link Dungeon} is made of
+ * <p>A dungeon stores one byte per tile, the {@link #code()} of its tile type.</p>
+ */
+public enum Tile
+{
+	EMPTY_FLOOR(Dungeon.EMPTY_FLOOR),
+	WALL(Dungeon.WALL),
+	STAIR_UP(Dungeon.STAIR_UP),
+	STAIR_DOWN(Dungeon.STAIR_DOWN),
+	UNREVEALED(Dungeon.UNREVEALED);
+
+	private static final Tile[] CODES = values();
+
+	private final String symbol;
+
+	Tile(String symbol)
+	{
+		this.symbol = symbol;
+	}
+
+	/**
+	 * Gets the symbol drawn for this tile
+	 * @return the symbol string
+	 */
+	public String getSymbol()
+	{
+		return symbol;
+	}
+
+	/**
+	 * Gets the byte stored for this tile
+	 * @return the tile code
+	 */
+	public byte code()
+	{
+		return (byte) ordinal();
+	}
+
+	/**
+	 * Checks if an actor can stand on this tile
+	 * @return true for floors and stairs
+	 */
+	public boolean isWalkable()
+	{
+		return this == EMPTY_FLOOR || this == STAIR_UP || this == STAIR_DOWN;
+	}
+
+	/**
+	 * Gets the tile stored as the given byte
+	 * @param code the tile code
+	 * @return the tile
+	 */
+	public static Tile fromCode(byte code)
+	{
+		return CODES[code];
+	}
+
+	/**
+	 * Gets the tile drawn with the given symbol
+	 * @param symbol the symbol string
+	 * @return the tile, {@link #UNREVEALED} for unknown symbols
+	 */
+	public static Tile fromSymbol(String symbol)
+	{
+		for (Tile tile : CODES)
+		{
+			if (tile.symbol.equals(symbol))
+				return tile;
+		}
+		return UNREVEALED;
+	}
+}
@@ -50,6 +50,21 @@ public class ActorUpdate extends Packet
 		return null;
 	}
 
+	/**
+	 * Gets a numeric value, JSON parsing gives Longs while the binary codec gives Integers
+	 * @param key the key of the value
+	 * @return the int value
+	 */
+	public int getIntValue(String key)
+	{
+		return ((Number) data.get(key)).intValue();
+	}
+
+	public Map<String, Object> getData()
+	{
+		return data;
+	}
+
 	public void insertValue(String key, Object value)
 	{
 		data.put(key, value);
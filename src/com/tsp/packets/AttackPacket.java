@@ -15,13 +15,21 @@ public class AttackPacket extends Packet
 	int attacker;
 	int deltaX;
 	int deltaY;
+	// Numbers the inputs of a client, 0 if the client does not
+	int sequence;
 
 	public AttackPacket(Integer _packetID, int attacker, int deltaX, int deltaY)
+	{
+		this(_packetID, attacker, deltaX, deltaY, 0);
+	}
+
+	public AttackPacket(Integer _packetID, int attacker, int deltaX, int deltaY, int sequence)
 	{
 		super(_packetID);
 		this.attacker = attacker;
 		this.deltaX = deltaX;
 		this.deltaY = deltaY;
+		this.sequence = sequence;
 		this.packetType = PacketType.ATTACK_PACKET;
 	}
 
@@ -40,6 +48,7 @@ public class AttackPacket extends Packet
 		       "attacker=" + attacker +
 		       ", deltaX=" + deltaX +
 		       ", deltaY=" + deltaY +
+		       ", sequence=" + sequence +
 		       '}';
 	}
 
@@ -52,6 +61,7 @@ public class AttackPacket extends Packet
 		jb.put("playerID",attacker);
 		jb.put("X", deltaX);
 		jb.put("Y", deltaY);
+		jb.put("sequence", sequence);
 
 		return jb.toString();
 	}
@@ -70,4 +80,18 @@ public class AttackPacket extends Packet
 	{
 		return deltaY;
 	}
+
+	public int getSequence()
+	{
+		return sequence;
+	}
+
+	/**
+	 * Numbers the attack
+	 * @param sequence the number of the input, acknowledged by the server in its snapshots
+	 */
+	public void setSequence(int sequence)
+	{
+		this.sequence = sequence;
+	}
 }
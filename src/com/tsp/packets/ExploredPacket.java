@@ -0,0 +1,94 @@
+package com.tsp.packets;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import com.tsp.game.map.ExploredMap;
+
+/**
+ * The part of the dungeon a player explored before, sent when it joins again
+ * <p>Only the blocks of the {@link ExploredMap} with something explored in them are
+ * sent, as triples of floor, block index and the 64 bits of the block.</p>
+ */
+public class ExploredPacket extends Packet
+{
+	private final ExploredMap explored;
+
+	/**
+	 * Creates a packet
+	 * @param explored the map, copied so it can keep changing while the packet waits to be sent
+	 */
+	public ExploredPacket(ExploredMap explored)
+	{
+		super();
+		this.explored = explored.copy();
+		this.packetType = PacketType.EXPLORED_PACKET;
+	}
+
+	ExploredPacket(int packetID, ExploredMap explored)
+	{
+		super(packetID);
+		this.explored = explored;
+		this.packetType = PacketType.EXPLORED_PACKET;
+	}
+
+	public ExploredMap getExplored()
+	{
+		return explored;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public String toJSONString()
+	{
+		JSONObject jsonObject = new JSONObject();
+		jsonObject.put("packetID", packetID);
+		jsonObject.put("packetType", packetType.toString());
+		jsonObject.put("cols", explored.getColumns());
+		jsonObject.put("rows", explored.getRows());
+		jsonObject.put("floors", explored.getFloors());
+		JSONArray blocks = new JSONArray();
+		for (int z = 0; z < explored.getFloors(); z++)
+		{
+			for (int i = 0; i < explored.getBlockCount(z); i++)
+			{
+				JSONArray block = new JSONArray();
+				block.add(z);
+				block.add(explored.getBlockIndex(z, i));
+				block.add(explored.getBlockBits(z, i));
+				blocks.add(block);
+			}
+		}
+		jsonObject.put("blocks", blocks);
+		return jsonObject.toJSONString();
+	}
+
+	/**
+	 * Reads a packet written by {@link #toJSONString()}
+	 * @param obj the parsed JSON
+	 * @return the packet
+	 * @throws IllegalArgumentException when the JSON is not a valid explored packet
+	 */
+	static ExploredPacket parseJSON(JSONObject obj) throws IllegalArgumentException
+	{
+		if (!(obj.get("cols") instanceof Number && obj.get("rows") instanceof Number &&
+		      obj.get("floors") instanceof Number && obj.get("blocks") instanceof JSONArray))
+			throw new IllegalArgumentException("Not a valid Explored packet");
+		ExploredMap explored = new ExploredMap(((Number) obj.get("cols")).intValue(),
+		                                       ((Number) obj.get("rows")).intValue(),
+		                                       ((Number) obj.get("floors")).intValue());
+		for (Object block : (JSONArray) obj.get("blocks"))
+		{
+			JSONArray triple = (JSONArray) block;
+			explored.addBlock(((Number) triple.get(0)).intValue(), ((Number) triple.get(1)).intValue(),
+			                  ((Number) triple.get(2)).longValue());
+		}
+		return new ExploredPacket(((Number) obj.get("packetID")).intValue(), explored);
+	}
+
+	@Override
+	public String toString()
+	{
+		return "ExploredPacket{" + toJSONString() + "}";
+	}
+}
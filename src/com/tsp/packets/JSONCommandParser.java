@@ -0,0 +1,303 @@
+package com.tsp.packets;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Parses the JSON commands clients send every turn straight from the received bytes
+ * <p>Movement, attack and quit packets are flat objects of numbers and one type name, so
+ * they are scanned in place without building a string or a {@link org.json.simple.JSONObject}
+ * first. Anything else, or anything this scanner is not sure about (escapes, fractions,
+ * nested values, missing keys), is left to the general parser so the result is always the
+ * same as {@link Packet#parseJSONObject(org.json.simple.JSONObject)} would give.</p>
+ */
+final class JSONCommandParser
+{
+	private static final byte[] PACKET_ID = ascii("packetID");
+	private static final byte[] PACKET_TYPE = ascii("packetType");
+	private static final byte[] PLAYER_ID = ascii("playerID");
+	private static final byte[] SEQUENCE = ascii("sequence");
+	private static final byte[] MOVEMENT = ascii(Packet.PacketType.MOVEMENTPACKET.name());
+	private static final byte[] ATTACK = ascii(Packet.PacketType.ATTACK_PACKET.name());
+	private static final byte[] QUIT = ascii(Packet.PacketType.QUIT_PACKET.name());
+
+	private static final int HAS_ID = 1;
+	private static final int HAS_PLAYER = 1 << 1;
+	private static final int HAS_X = 1 << 2;
+	private static final int HAS_Y = 1 << 3;
+	private static final int HAS_Z = 1 << 4;
+	private static final int HAS_SEQUENCE = 1 << 5;
+
+	// Numbers longer than this could overflow a long, the general parser deals with them
+	private static final int MAX_DIGITS = 18;
+
+	private final ByteBuffer buf;
+	private final int limit;
+	private int pos;
+
+	private JSONCommandParser(ByteBuffer buf)
+	{
+		this.buf = buf;
+		this.limit = buf.limit();
+		this.pos = buf.position();
+	}
+
+	/**
+	 * Parses a command from the remaining bytes of the buffer
+	 * @param buf the buffer holding one JSON packet
+	 * @return the packet, or null if it is not a command this parser handles, the buffer
+	 * is then left untouched
+	 */
+	static Packet parse(ByteBuffer buf)
+	{
+		JSONCommandParser parser = new JSONCommandParser(buf);
+		Packet packet = parser.parseObject();
+		if (packet != null)
+			buf.position(parser.limit);
+		return packet;
+	}
+
+	private Packet parseObject()
+	{
+		if (!skipWhitespace() || buf.get(pos++) != '{')
+			return null;
+		Packet.PacketType type = null;
+		int found = 0;
+		long packetID = 0;
+		long playerID = 0;
+		long x = 0;
+		long y = 0;
+		long z = 0;
+		long sequence = 0;
+		boolean first = true;
+		while (true)
+		{
+			if (!skipWhitespace())
+				return null;
+			byte c = buf.get(pos);
+			if (c == '}')
+			{
+				pos++;
+				break;
+			}
+			if (!first)
+			{
+				if (c != ',')
+					return null;
+				pos++;
+				if (!skipWhitespace())
+					return null;
+			}
+			first = false;
+
+			int keyStart = pos + 1;
+			int keyEnd = scanString();
+			if (keyEnd < 0 || !skipWhitespace() || buf.get(pos++) != ':' || !skipWhitespace())
+				return null;
+
+			if (matches(keyStart, keyEnd, PACKET_TYPE))
+			{
+				int valueStart = pos + 1;
+				int valueEnd = scanString();
+				if (valueEnd < 0)
+					return null;
+				if (matches(valueStart, valueEnd, MOVEMENT))
+					type = Packet.PacketType.MOVEMENTPACKET;
+				else if (matches(valueStart, valueEnd, ATTACK))
+					type = Packet.PacketType.ATTACK_PACKET;
+				else if (matches(valueStart, valueEnd, QUIT))
+					type = Packet.PacketType.QUIT_PACKET;
+				else
+					return null;
+				continue;
+			}
+
+			int field = fieldFor(keyStart, keyEnd);
+			if (field == 0)
+			{
+				if (!skipScalar())
+					return null;
+				continue;
+			}
+			int start = pos;
+			long value = scanLong();
+			if (pos == start)
+				return null;
+			found |= field;
+			switch (field)
+			{
+				case HAS_ID:
+					packetID = value;
+					break;
+				case HAS_PLAYER:
+					playerID = value;
+					break;
+				case HAS_X:
+					x = value;
+					break;
+				case HAS_Y:
+					y = value;
+					break;
+				case HAS_Z:
+					z = value;
+					break;
+				default:
+					sequence = value;
+					break;
+			}
+		}
+		// Only whitespace may follow the object
+		if (skipWhitespace() || type == null || (found & HAS_ID) == 0)
+			return null;
+
+		switch (type)
+		{
+			case MOVEMENTPACKET:
+				if ((found & (HAS_PLAYER | HAS_X | HAS_Y | HAS_Z)) != (HAS_PLAYER | HAS_X | HAS_Y | HAS_Z))
+					return null;
+				return new MovementPacket((int) packetID, (int) playerID, (int) x, (int) y, (int) z, (int) sequence);
+			case ATTACK_PACKET:
+				if ((found & (HAS_PLAYER | HAS_X | HAS_Y)) != (HAS_PLAYER | HAS_X | HAS_Y))
+					return null;
+				return new AttackPacket((int) packetID, (int) playerID, (int) x, (int) y, (int) sequence);
+			default:
+				return new QuitPacket();
+		}
+	}
+
+	private int fieldFor(int start, int end)
+	{
+		if (end - start == 1)
+		{
+			switch (buf.get(start))
+			{
+				case 'X':
+					return HAS_X;
+				case 'Y':
+					return HAS_Y;
+				case 'Z':
+					return HAS_Z;
+				default:
+					return 0;
+			}
+		}
+		if (matches(start, end, PACKET_ID))
+			return HAS_ID;
+		if (matches(start, end, PLAYER_ID))
+			return HAS_PLAYER;
+		if (matches(start, end, SEQUENCE))
+			return HAS_SEQUENCE;
+		return 0;
+	}
+
+	/**
+	 * Skips whitespace
+	 * @return false if the end of the data was reached
+	 */
+	private boolean skipWhitespace()
+	{
+		while (pos < limit)
+		{
+			byte c = buf.get(pos);
+			if (c != ' ' && c != '\t' && c != '\n' && c != '\r')
+				return true;
+			pos++;
+		}
+		return false;
+	}
+
+	/**
+	 * Moves past a string without escapes
+	 * @return the index of the closing quote, -1 if there is no such string here
+	 */
+	private int scanString()
+	{
+		if (pos >= limit || buf.get(pos) != '"')
+			return -1;
+		for (int i = pos + 1; i < limit; i++)
+		{
+			byte c = buf.get(i);
+			if (c == '"')
+			{
+				pos = i + 1;
+				return i;
+			}
+			if (c == '\\')
+				return -1;
+		}
+		return -1;
+	}
+
+	/**
+	 * Moves past an integer, the position does not move if there is none here
+	 */
+	private long scanLong()
+	{
+		int start = pos;
+		boolean negative = pos < limit && buf.get(pos) == '-';
+		int i = negative ? pos + 1 : pos;
+		long value = 0;
+		int digits = 0;
+		while (i < limit)
+		{
+			byte c = buf.get(i);
+			if (c < '0' || c > '9')
+				break;
+			value = value * 10 + (c - '0');
+			digits++;
+			i++;
+		}
+		if (digits == 0 || digits > MAX_DIGITS)
+			return 0;
+		// Fractions and exponents are not integers, leave them to the general parser
+		if (i < limit && (buf.get(i) == '.' || buf.get(i) == 'e' || buf.get(i) == 'E'))
+			return 0;
+		pos = i;
+		return negative ? -value : value;
+	}
+
+	/**
+	 * Moves past the value of a key this parser does not use
+	 * @return false if the value is not a plain string, number or literal
+	 */
+	private boolean skipScalar()
+	{
+		if (pos >= limit)
+			return false;
+		byte c = buf.get(pos);
+		if (c == '"')
+			return scanString() >= 0;
+		if (c == '{' || c == '[')
+			return false;
+		int start = pos;
+		while (pos < limit)
+		{
+			c = buf.get(pos);
+			if (c == ',' || c == '}' || c == ' ' || c == '\t' || c == '\n' || c == '\r')
+				break;
+			pos++;
+		}
+		return pos > start;
+	}
+
+	private boolean matches(int start, int end, byte[] expected)
+	{
+		if (end - start != expected.length)
+			return false;
+		for (int i = 0; i < expected.length; i++)
+		{
+			if (buf.get(start + i) != expected[i])
+				return false;
+		}
+		return true;
+	}
+
+	private static byte[] ascii(String string)
+	{
+		byte[] bytes = new byte[string.length()];
+		for (int i = 0; i < bytes.length; i++)
+		{
+			bytes[i] = (byte) string.charAt(i);
+		}
+		return bytes;
+	}
+}
@@ -35,14 +35,23 @@ public class MovementPacket extends Packet
 	Integer m_newX;
 	Integer m_newY;
 	Integer m_newZ;
+	// Numbers the inputs of a client, 0 if the client does not
+	int sequence;
 
 	public MovementPacket(Integer _packetID, Integer m_playerID, Integer m_newX, Integer m_newY, Integer m_moveZ )
+	{
+		this(_packetID, m_playerID, m_newX, m_newY, m_moveZ, 0);
+	}
+
+	public MovementPacket(Integer _packetID, Integer m_playerID, Integer m_newX, Integer m_newY, Integer m_moveZ,
+	                      int sequence)
 	{
 		super(_packetID);
 		this.m_playerID = m_playerID;
 		this.m_newX = m_newX;
 		this.m_newY = m_newY;
 		this.m_newZ = m_moveZ;
+		this.sequence = sequence;
 		this.packetType = PacketType.MOVEMENTPACKET;
 	}
 
@@ -56,6 +65,20 @@ public class MovementPacket extends Packet
 		this.packetType = PacketType.MOVEMENTPACKET;
 	}
 
+	public int getSequence()
+	{
+		return sequence;
+	}
+
+	/**
+	 * Numbers the move
+	 * @param sequence the number of the input, acknowledged by the server in its snapshots
+	 */
+	public void setSequence(int sequence)
+	{
+		this.sequence = sequence;
+	}
+
 	@Override
 	public String toJSONString()
 	{
@@ -66,6 +89,7 @@ public class MovementPacket extends Packet
 		jb.put("X", m_newX);
 		jb.put("Y", m_newY);
 		jb.put("Z", m_newZ);
+		jb.put("sequence", sequence);
 
 		return jb.toString();
 	}
@@ -78,6 +102,7 @@ public class MovementPacket extends Packet
 		       ", m_newX=" + m_newX +
 		       ", m_newY=" + m_newY +
 		       ", m_newZ=" + m_newZ +
+		       ", sequence=" + sequence +
 		       '}';
 	}
 }
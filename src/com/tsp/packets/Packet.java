@@ -27,7 +27,9 @@ public abstract class Packet implements JSONAware
 		UPDATE_PACKET,
 		ATTACK_PACKET,
 		QUIT_PACKET,
-		MESSAGE_PACKET, SCORE_PACKET
+		MESSAGE_PACKET, SCORE_PACKET,
+		SNAPSHOT_PACKET,
+		EXPLORED_PACKET
 	}
 
 	protected static Integer packetCount = 0;
@@ -91,7 +93,8 @@ public abstract class Packet implements JSONAware
 					                          ((Long) obj.get("playerID")).intValue(),
 					                          ((Long) obj.get("X")).intValue(),
 					                          ((Long) obj.get("Y")).intValue(),
-					                          ((Long) obj.get("Z")).intValue());
+					                          ((Long) obj.get("Z")).intValue(),
+					                          sequenceOf(obj));
 				}
 				case ACTOR_PACKET:
 				{
@@ -134,7 +137,8 @@ public abstract class Packet implements JSONAware
 					return new AttackPacket(((Long) obj.get("packetID")).intValue(),
 					                        ((Long) obj.get("playerID")).intValue(),
 					                        ((Long) obj.get("X")).intValue(),
-					                        ((Long) obj.get("Y")).intValue());
+					                        ((Long) obj.get("Y")).intValue(),
+					                        sequenceOf(obj));
 				}
 				case UPDATE_PACKET:
 				{
@@ -165,6 +169,10 @@ public abstract class Packet implements JSONAware
 					KDTuple score = new KDTuple(kills, deaths);
 					return new ScorePacket(playerId, score);
 				}
+				case SNAPSHOT_PACKET:
+					return SnapshotPacket.parseJSON(obj);
+				case EXPLORED_PACKET:
+					return ExploredPacket.parseJSON(obj);
 				default:
 					throw new IllegalArgumentException("Not a valid packet");
 			}
@@ -173,4 +181,13 @@ public abstract class Packet implements JSONAware
 			throw new IllegalArgumentException("JSON is not packet");
 
 	}
+
+	/**
+	 * Gets the input sequence number of a move or attack, 0 when the sender left it out
+	 */
+	private static int sequenceOf(JSONObject obj)
+	{
+		Object sequence = obj.get("sequence");
+		return sequence instanceof Number ? ((Number) sequence).intValue() : 0;
+	}
 }
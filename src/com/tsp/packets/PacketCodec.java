@@ -0,0 +1,598 @@
+package com.tsp.packets;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import com.tsp.game.actors.Actor;
+import com.tsp.game.actors.Player;
+import com.tsp.game.map.ExploredMap;
+import com.tsp.game.map.Point3D;
+import com.tsp.util.KDTuple;
+
+/**
+ * Compact binary encoding of every {@link Packet}
+ * <p>A packet starts with one byte holding the {@link Packet.PacketType} ordinal and the
+ * packet id as a varint, followed by a fixed layout for its type. Ids and counts are
+ * unsigned varints, coordinates and other values that can be negative are zig-zag
+ * varints and strings are a varint length followed by UTF-8 bytes.</p>
+ * <p>The first byte can never be <code>'{'</code>, so a receiver can tell a binary
+ * packet from a JSON one by looking at it.</p>
+ * <p>Fields added to a layout later only ever go at its end and are read only if the
+ * packet has bytes left, every packet is framed on its own, so packets from older
+ * senders still decode and older receivers ignore the new tail.</p>
+ *
+ * @see Protocol
+ */
+public final class PacketCodec
+{
+	// ActorUpdate field flags, in the order the fields are written
+	private static final int FIELD_X = 1;
+	private static final int FIELD_Y = 1 << 1;
+	private static final int FIELD_Z = 1 << 2;
+	private static final int FIELD_HEALTH = 1 << 3;
+	private static final int FIELD_SYMBOL = 1 << 4;
+	private static final int FIELD_ATTACK = 1 << 5;
+	private static final int FIELD_REMOVE = 1 << 6;
+	private static final int FIELD_EXTRA = 1 << 7;
+
+	private static final byte EXTRA_NUMBER = 0;
+	private static final byte EXTRA_BOOLEAN = 1;
+	private static final byte EXTRA_STRING = 2;
+
+	private static final Packet.PacketType[] TYPES = Packet.PacketType.values();
+	private static final Actor.ActorType[] ACTOR_TYPES = Actor.ActorType.values();
+
+	private PacketCodec()
+	{
+	}
+
+	/**
+	 * Checks whether the data at the buffers position is a binary packet
+	 * @param buf the buffer holding a packet
+	 * @return false if the data looks like a JSON packet
+	 */
+	public static boolean isBinary(ByteBuffer buf)
+	{
+		return buf.hasRemaining() && buf.get(buf.position()) != '{';
+	}
+
+	/**
+	 * Writes the packet at the buffers position
+	 * @param packet the packet to encode
+	 * @param buf the buffer to write to
+	 * @throws java.nio.BufferOverflowException when the buffer is too small
+	 */
+	public static void encode(Packet packet, ByteBuffer buf)
+	{
+		buf.put((byte) packet.getPacketType().ordinal());
+		putVarInt(buf, packet.getPacketID());
+		switch (packet.getPacketType())
+		{
+			case MOVEMENTPACKET:
+			{
+				MovementPacket movementPacket = (MovementPacket) packet;
+				putVarInt(buf, movementPacket.getM_playerID());
+				putSignedVarInt(buf, movementPacket.getM_newX());
+				putSignedVarInt(buf, movementPacket.getM_newY());
+				putSignedVarInt(buf, movementPacket.getM_newZ());
+				putVarInt(buf, movementPacket.getSequence());
+				break;
+			}
+			case ATTACK_PACKET:
+			{
+				AttackPacket attackPacket = (AttackPacket) packet;
+				putVarInt(buf, attackPacket.getAttacker());
+				putSignedVarInt(buf, attackPacket.getDeltaX());
+				putSignedVarInt(buf, attackPacket.getDeltaY());
+				putVarInt(buf, attackPacket.getSequence());
+				break;
+			}
+			case ACTOR_PACKET:
+			{
+				Actor actor = ((ActorPacket) packet).getActor();
+				putVarInt(buf, actor.getId());
+				putString(buf, actor.getName());
+				putSignedVarInt(buf, actor.getX());
+				putSignedVarInt(buf, actor.getY());
+				putSignedVarInt(buf, actor.getZ());
+				putSignedVarInt(buf, actor.getHealth());
+				buf.put((byte) actor.getType().ordinal());
+				putString(buf, actor.getSymbol());
+				putVarInt(buf, actor.getColor());
+				break;
+			}
+			case UPDATE_PACKET:
+				encodeUpdate((ActorUpdate) packet, buf);
+				break;
+			case MESSAGE_PACKET:
+				putString(buf, ((MessagePacket) packet).getMessage());
+				break;
+			case SCORE_PACKET:
+			{
+				ScorePacket scorePacket = (ScorePacket) packet;
+				putString(buf, scorePacket.getPlayerID());
+				putVarInt(buf, scorePacket.getScore().kills());
+				putVarInt(buf, scorePacket.getScore().deaths());
+				break;
+			}
+			case SNAPSHOT_PACKET:
+				encodeSnapshot((SnapshotPacket) packet, buf);
+				break;
+			case EXPLORED_PACKET:
+				encodeExplored((ExploredPacket) packet, buf);
+				break;
+			case QUIT_PACKET:
+			default:
+				break;
+		}
+	}
+
+	/**
+	 * Reads one packet from the buffers position
+	 * @param buf the buffer holding the packet
+	 * @return the packet
+	 * @throws IllegalArgumentException when the data is not a valid packet
+	 */
+	public static Packet decode(ByteBuffer buf) throws IllegalArgumentException
+	{
+		try
+		{
+			int type = buf.get();
+			if (type < 0 || type >= TYPES.length)
+				throw new IllegalArgumentException("Not a valid packet");
+			int packetID = getVarInt(buf);
+			switch (TYPES[type])
+			{
+				case MOVEMENTPACKET:
+					return new MovementPacket(packetID, getVarInt(buf), getSignedVarInt(buf),
+					                          getSignedVarInt(buf), getSignedVarInt(buf), getOptionalVarInt(buf));
+				case ATTACK_PACKET:
+					return new AttackPacket(packetID, getVarInt(buf), getSignedVarInt(buf), getSignedVarInt(buf),
+					                        getOptionalVarInt(buf));
+				case ACTOR_PACKET:
+				{
+					int id = getVarInt(buf);
+					String name = getString(buf);
+					int x = getSignedVarInt(buf);
+					int y = getSignedVarInt(buf);
+					int z = getSignedVarInt(buf);
+					int health = getSignedVarInt(buf);
+					Actor.ActorType actorType = ACTOR_TYPES[buf.get()];
+					String symbol = getString(buf);
+					int color = getVarInt(buf);
+
+					Actor actor = new Actor(id, health, new Point3D(x, y, z), name, actorType, symbol, color);
+					if (actor.getType() == Actor.ActorType.ACTOR_PLAYER)
+					{
+						return new ActorPacket(packetID, new Player(actor));
+					}
+					return new ActorPacket(packetID, actor);
+				}
+				case UPDATE_PACKET:
+					return decodeUpdate(packetID, buf);
+				case QUIT_PACKET:
+					return new QuitPacket();
+				case MESSAGE_PACKET:
+					return new MessagePacket(getString(buf));
+				case SCORE_PACKET:
+				{
+					String playerId = getString(buf);
+					int kills = getVarInt(buf);
+					int deaths = getVarInt(buf);
+					return new ScorePacket(playerId, new KDTuple(kills, deaths));
+				}
+				case SNAPSHOT_PACKET:
+					return decodeSnapshot(packetID, buf);
+				case EXPLORED_PACKET:
+					return decodeExplored(packetID, buf);
+				default:
+					throw new IllegalArgumentException("Not a valid packet");
+			}
+		}
+		catch (BufferUnderflowException e)
+		{
+			throw new IllegalArgumentException("Truncated packet");
+		}
+		catch (ArrayIndexOutOfBoundsException e)
+		{
+			throw new IllegalArgumentException("Not a valid packet");
+		}
+	}
+
+	private static void encodeUpdate(ActorUpdate update, ByteBuffer buf)
+	{
+		int fields = 0;
+		int extras = 0;
+		for (String key : update.getData().keySet())
+		{
+			if (isExtra(key))
+				extras++;
+			fields |= fieldFor(key);
+		}
+		if (!(update.contains("attacking") && update.contains("deltaX") && update.contains("deltaY")))
+			fields &= ~FIELD_ATTACK;
+		if (extras > 0)
+			fields |= FIELD_EXTRA;
+
+		putVarInt(buf, update.getActorID());
+		buf.put((byte) fields);
+		if ((fields & FIELD_X) != 0)
+			putSignedVarInt(buf, update.getIntValue("X"));
+		if ((fields & FIELD_Y) != 0)
+			putSignedVarInt(buf, update.getIntValue("Y"));
+		if ((fields & FIELD_Z) != 0)
+			putSignedVarInt(buf, update.getIntValue("Z"));
+		if ((fields & FIELD_HEALTH) != 0)
+			putSignedVarInt(buf, update.getIntValue("health"));
+		if ((fields & FIELD_SYMBOL) != 0)
+			putString(buf, (String) update.getValue("symbol"));
+		if ((fields & FIELD_ATTACK) != 0)
+		{
+			buf.put((byte) (Boolean.TRUE.equals(update.getValue("attacking")) ? 1 : 0));
+			putSignedVarInt(buf, update.getIntValue("deltaX"));
+			putSignedVarInt(buf, update.getIntValue("deltaY"));
+		}
+		if ((fields & FIELD_EXTRA) != 0)
+		{
+			putVarInt(buf, extras);
+			for (Map.Entry<String, Object> entry : update.getData().entrySet())
+			{
+				if (!isExtra(entry.getKey()))
+					continue;
+				putString(buf, entry.getKey());
+				Object value = entry.getValue();
+				if (value instanceof Boolean)
+				{
+					buf.put(EXTRA_BOOLEAN);
+					buf.put((byte) ((Boolean) value ? 1 : 0));
+				}
+				else if (value instanceof Number)
+				{
+					buf.put(EXTRA_NUMBER);
+					putSignedVarLong(buf, ((Number) value).longValue());
+				}
+				else
+				{
+					buf.put(EXTRA_STRING);
+					putString(buf, String.valueOf(value));
+				}
+			}
+		}
+	}
+
+	private static ActorUpdate decodeUpdate(int packetID, ByteBuffer buf)
+	{
+		ActorUpdate update = new ActorUpdate(packetID, getVarInt(buf));
+		int fields = buf.get() & 0xFF;
+		if ((fields & FIELD_X) != 0)
+			update.insertValue("X", getSignedVarInt(buf));
+		if ((fields & FIELD_Y) != 0)
+			update.insertValue("Y", getSignedVarInt(buf));
+		if ((fields & FIELD_Z) != 0)
+			update.insertValue("Z", getSignedVarInt(buf));
+		if ((fields & FIELD_HEALTH) != 0)
+			update.insertValue("health", getSignedVarInt(buf));
+		if ((fields & FIELD_SYMBOL) != 0)
+			update.insertValue("symbol", getString(buf));
+		if ((fields & FIELD_ATTACK) != 0)
+		{
+			update.insertValue("attacking", buf.get() != 0);
+			update.insertValue("deltaX", getSignedVarInt(buf));
+			update.insertValue("deltaY", getSignedVarInt(buf));
+		}
+		if ((fields & FIELD_REMOVE) != 0)
+			update.insertValue("remove", "remove");
+		if ((fields & FIELD_EXTRA) != 0)
+		{
+			int extras = getVarInt(buf);
+			for (int i = 0; i < extras; i++)
+			{
+				String key = getString(buf);
+				byte kind = buf.get();
+				if (kind == EXTRA_BOOLEAN)
+					update.insertValue(key, buf.get() != 0);
+				else if (kind == EXTRA_NUMBER)
+					update.insertValue(key, getSignedVarLong(buf));
+				else
+					update.insertValue(key, getString(buf));
+			}
+		}
+		return update;
+	}
+
+	private static void encodeSnapshot(SnapshotPacket snapshot, ByteBuffer buf)
+	{
+		putVarInt(buf, snapshot.getEntries().size());
+		for (SnapshotPacket.Entry entry : snapshot.getEntries())
+		{
+			putVarInt(buf, entry.getActorID());
+			buf.put((byte) entry.getFields());
+			if (entry.has(SnapshotPacket.X))
+				putSignedVarInt(buf, entry.getX());
+			if (entry.has(SnapshotPacket.Y))
+				putSignedVarInt(buf, entry.getY());
+			if (entry.has(SnapshotPacket.Z))
+				putSignedVarInt(buf, entry.getZ());
+			if (entry.has(SnapshotPacket.HEALTH))
+				putSignedVarInt(buf, entry.getHealth());
+			if (entry.has(SnapshotPacket.SYMBOL))
+				putString(buf, entry.getSymbol());
+			if (entry.has(SnapshotPacket.ATTACK))
+			{
+				buf.put((byte) (entry.isAttacking() ? 1 : 0));
+				putSignedVarInt(buf, entry.getDeltaX());
+				putSignedVarInt(buf, entry.getDeltaY());
+			}
+			if (entry.has(SnapshotPacket.NEW))
+			{
+				putString(buf, entry.getName());
+				buf.put((byte) entry.getType().ordinal());
+				putVarInt(buf, entry.getColor());
+			}
+		}
+		putVarInt(buf, snapshot.getRemoved().size());
+		for (int id : snapshot.getRemoved())
+		{
+			putVarInt(buf, id);
+		}
+		putVarInt(buf, snapshot.getHidden().size());
+		for (int id : snapshot.getHidden())
+		{
+			putVarInt(buf, id);
+		}
+		putVarInt(buf, snapshot.getAck());
+	}
+
+	private static SnapshotPacket decodeSnapshot(int packetID, ByteBuffer buf)
+	{
+		SnapshotPacket snapshot = new SnapshotPacket(packetID);
+		int count = getVarInt(buf);
+		for (int i = 0; i < count; i++)
+		{
+			int id = getVarInt(buf);
+			int fields = buf.get() & 0xFF;
+			int x = (fields & SnapshotPacket.X) != 0 ? getSignedVarInt(buf) : 0;
+			int y = (fields & SnapshotPacket.Y) != 0 ? getSignedVarInt(buf) : 0;
+			int z = (fields & SnapshotPacket.Z) != 0 ? getSignedVarInt(buf) : 0;
+			int health = (fields & SnapshotPacket.HEALTH) != 0 ? getSignedVarInt(buf) : 0;
+			String symbol = (fields & SnapshotPacket.SYMBOL) != 0 ? getString(buf) : null;
+			boolean attacking = false;
+			int deltaX = 0;
+			int deltaY = 0;
+			if ((fields & SnapshotPacket.ATTACK) != 0)
+			{
+				attacking = buf.get() != 0;
+				deltaX = getSignedVarInt(buf);
+				deltaY = getSignedVarInt(buf);
+			}
+			String name = null;
+			Actor.ActorType actorType = null;
+			int color = 0;
+			if ((fields & SnapshotPacket.NEW) != 0)
+			{
+				name = getString(buf);
+				actorType = ACTOR_TYPES[buf.get()];
+				color = getVarInt(buf);
+			}
+			snapshot.addEntry(new SnapshotPacket.Entry(id, fields, x, y, z, health, symbol, attacking,
+			                                           deltaX, deltaY, name, actorType, color));
+		}
+		int removed = getVarInt(buf);
+		for (int i = 0; i < removed; i++)
+		{
+			snapshot.addRemoved(getVarInt(buf));
+		}
+		int hidden = getVarInt(buf);
+		for (int i = 0; i < hidden; i++)
+		{
+			snapshot.addHidden(getVarInt(buf));
+		}
+		snapshot.setAck(getOptionalVarInt(buf));
+		return snapshot;
+	}
+
+	/**
+	 * Writes the size of the map, then per explored floor its index, the number of non
+	 * zero blocks and each of them as a block index delta and the raw 64 bits
+	 */
+	private static void encodeExplored(ExploredPacket packet, ByteBuffer buf)
+	{
+		ExploredMap explored = packet.getExplored();
+		putVarInt(buf, explored.getColumns());
+		putVarInt(buf, explored.getRows());
+		putVarInt(buf, explored.getFloors());
+		int floors = 0;
+		for (int z = 0; z < explored.getFloors(); z++)
+		{
+			if (explored.getBlockCount(z) > 0)
+				floors++;
+		}
+		putVarInt(buf, floors);
+		for (int z = 0; z < explored.getFloors(); z++)
+		{
+			int count = explored.getBlockCount(z);
+			if (count == 0)
+				continue;
+			putVarInt(buf, z);
+			putVarInt(buf, count);
+			int last = 0;
+			for (int i = 0; i < count; i++)
+			{
+				int block = explored.getBlockIndex(z, i);
+				putVarInt(buf, block - last);
+				buf.putLong(explored.getBlockBits(z, i));
+				last = block;
+			}
+		}
+	}
+
+	private static ExploredPacket decodeExplored(int packetID, ByteBuffer buf)
+	{
+		ExploredMap explored = new ExploredMap(getVarInt(buf), getVarInt(buf), getVarInt(buf));
+		int floors = getVarInt(buf);
+		for (int f = 0; f < floors; f++)
+		{
+			int z = getVarInt(buf);
+			int count = getVarInt(buf);
+			int block = 0;
+			for (int i = 0; i < count; i++)
+			{
+				block += getVarInt(buf);
+				explored.addBlock(z, block, buf.getLong());
+			}
+		}
+		return new ExploredPacket(packetID, explored);
+	}
+
+	private static int fieldFor(String key)
+	{
+		if (key.equals("X"))
+			return FIELD_X;
+		if (key.equals("Y"))
+			return FIELD_Y;
+		if (key.equals("Z"))
+			return FIELD_Z;
+		if (key.equals("health"))
+			return FIELD_HEALTH;
+		if (key.equals("symbol"))
+			return FIELD_SYMBOL;
+		if (key.equals("attacking") || key.equals("deltaX") || key.equals("deltaY"))
+			return FIELD_ATTACK;
+		if (key.equals("remove"))
+			return FIELD_REMOVE;
+		return 0;
+	}
+
+	private static boolean isExtra(String key)
+	{
+		// actorID is part of the fixed layout, JSON parsing leaves a copy of it in the data
+		return fieldFor(key) == 0 && !key.equals("actorID");
+	}
+
+	/**
+	 * Writes an unsigned varint, 7 bits per byte with the high bit set on all but the last byte
+	 * @param buf the buffer to write to
+	 * @param value the value, treated as unsigned
+	 */
+	public static void putVarInt(ByteBuffer buf, int value)
+	{
+		while ((value & ~0x7F) != 0)
+		{
+			buf.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buf.put((byte) value);
+	}
+
+	/**
+	 * Reads an unsigned varint
+	 * @param buf the buffer to read from
+	 * @return the value
+	 */
+	public static int getVarInt(ByteBuffer buf)
+	{
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7)
+		{
+			byte b = buf.get();
+			value |= (b & 0x7F) << shift;
+			if (b >= 0)
+				return value;
+		}
+		throw new IllegalArgumentException("Malformed varint");
+	}
+
+	/**
+	 * Reads an unsigned varint added to the end of a layout, older senders leave it out
+	 * @param buf the buffer to read from
+	 * @return the value, 0 if the packet has no bytes left
+	 */
+	public static int getOptionalVarInt(ByteBuffer buf)
+	{
+		return buf.hasRemaining() ? getVarInt(buf) : 0;
+	}
+
+	/**
+	 * Writes a zig-zag encoded varint so small negative numbers stay small
+	 * @param buf the buffer to write to
+	 * @param value the value
+	 */
+	public static void putSignedVarInt(ByteBuffer buf, int value)
+	{
+		putVarInt(buf, (value << 1) ^ (value >> 31));
+	}
+
+	/**
+	 * Reads a zig-zag encoded varint
+	 * @param buf the buffer to read from
+	 * @return the value
+	 */
+	public static int getSignedVarInt(ByteBuffer buf)
+	{
+		int raw = getVarInt(buf);
+		return (raw >>> 1) ^ -(raw & 1);
+	}
+
+	private static void putSignedVarLong(ByteBuffer buf, long value)
+	{
+		long raw = (value << 1) ^ (value >> 63);
+		while ((raw & ~0x7FL) != 0)
+		{
+			buf.put((byte) ((raw & 0x7F) | 0x80));
+			raw >>>= 7;
+		}
+		buf.put((byte) raw);
+	}
+
+	private static long getSignedVarLong(ByteBuffer buf)
+	{
+		long raw = 0;
+		for (int shift = 0; shift < 70; shift += 7)
+		{
+			byte b = buf.get();
+			raw |= (long) (b & 0x7F) << shift;
+			if (b >= 0)
+				return (raw >>> 1) ^ -(raw & 1);
+		}
+		throw new IllegalArgumentException("Malformed varint");
+	}
+
+	/**
+	 * Writes a varint length followed by the UTF-8 bytes of the string, null is written as empty
+	 * @param buf the buffer to write to
+	 * @param string the string
+	 */
+	public static void putString(ByteBuffer buf, String string)
+	{
+		byte[] bytes = (string == null ? "" : string).getBytes(StandardCharsets.UTF_8);
+		putVarInt(buf, bytes.length);
+		buf.put(bytes);
+	}
+
+	/**
+	 * Reads a string written by {@link #putString(ByteBuffer, String)}
+	 * @param buf the buffer to read from
+	 * @return the string
+	 */
+	public static String getString(ByteBuffer buf)
+	{
+		int length = getVarInt(buf);
+		if (length < 0 || length > buf.remaining())
+			throw new IllegalArgumentException("Bad string length");
+		String string;
+		if (buf.hasArray())
+		{
+			string = new String(buf.array(), buf.arrayOffset() + buf.position(), length, StandardCharsets.UTF_8);
+			buf.position(buf.position() + length);
+		}
+		else
+		{
+			byte[] bytes = new byte[length];
+			buf.get(bytes);
+			string = new String(bytes, StandardCharsets.UTF_8);
+		}
+		return string;
+	}
+}
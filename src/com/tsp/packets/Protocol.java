@@ -0,0 +1,132 @@
+package com.tsp.packets;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+
+/**
+ * The encodings a connection can use for its packets
+ * <p>The protocol is picked by the client in the name it sends during the handshake.
+ * A plain name means {@link #JSON} so older clients keep working, a name followed by
+ * a NUL and the protocol name asks for that protocol instead. A second NUL followed by
+ * a room name asks to play in that room.</p>
+ *
+ * @see PacketCodec
+ */
+public enum Protocol
+{
+	JSON,
+	BINARY;
+
+	private static final char SEPARATOR = '\u0000';
+
+	/**
+	 * Builds the handshake string a client sends to ask for this protocol
+	 * @param name the name of the client/player
+	 * @return the handshake string
+	 */
+	public String hello(String name)
+	{
+		if (this == JSON)
+			return name;
+		return name + SEPARATOR + name();
+	}
+
+	/**
+	 * Builds the handshake string a client sends to ask for this protocol in a room
+	 * @param name the name of the client/player
+	 * @param room the room to play in, empty for the default room
+	 * @return the handshake string
+	 */
+	public String hello(String name, String room)
+	{
+		if (room == null || room.isEmpty())
+			return hello(name);
+		return name + SEPARATOR + name() + SEPARATOR + room;
+	}
+
+	/**
+	 * Writes the packet at the buffers position
+	 * @param packet the packet to encode
+	 * @param buf the buffer to write to
+	 * @throws java.nio.BufferOverflowException when the buffer is too small
+	 */
+	public void encode(Packet packet, ByteBuffer buf)
+	{
+		if (this == BINARY)
+			PacketCodec.encode(packet, buf);
+		else
+			buf.put(packet.toJSONString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Reads the packet held by the remaining bytes of the buffer
+	 * <p>JSON commands are parsed straight from the bytes, other JSON packets go through
+	 * json-simple.</p>
+	 * @param buf the buffer holding exactly one packet
+	 * @return the packet, or null if the data is not a JSON object
+	 * @throws IllegalArgumentException when the data is not a valid packet
+	 */
+	public Packet decode(ByteBuffer buf) throws IllegalArgumentException
+	{
+		if (this == BINARY)
+			return PacketCodec.decode(buf);
+		Packet command = JSONCommandParser.parse(buf);
+		if (command != null)
+			return command;
+		Object object = JSONValue.parse(StandardCharsets.UTF_8.decode(buf).toString());
+		if (object instanceof JSONObject)
+			return Packet.parseJSONObject((JSONObject) object);
+		return null;
+	}
+
+	/**
+	 * Gets the name out of a handshake string
+	 * @param hello the handshake string
+	 * @return the name of the client/player
+	 */
+	public static String nameFromHello(String hello)
+	{
+		int separator = hello.indexOf(SEPARATOR);
+		return (separator < 0 ? hello : hello.substring(0, separator)).trim();
+	}
+
+	/**
+	 * Gets the protocol asked for in a handshake string
+	 * @param hello the handshake string
+	 * @return the protocol, {@link #JSON} when none or an unknown one was asked for
+	 */
+	public static Protocol fromHello(String hello)
+	{
+		int separator = hello.indexOf(SEPARATOR);
+		if (separator < 0)
+			return JSON;
+		int end = hello.indexOf(SEPARATOR, separator + 1);
+		try
+		{
+			return valueOf(hello.substring(separator + 1, end < 0 ? hello.length() : end).trim());
+		}
+		catch (IllegalArgumentException e)
+		{
+			return JSON;
+		}
+	}
+
+	/**
+	 * Gets the room asked for in a handshake string
+	 * @param hello the handshake string
+	 * @return the name of the room, empty when none was asked for
+	 */
+	public static String roomFromHello(String hello)
+	{
+		int separator = hello.indexOf(SEPARATOR);
+		if (separator < 0)
+			return "";
+		separator = hello.indexOf(SEPARATOR, separator + 1);
+		if (separator < 0)
+			return "";
+		return hello.substring(separator + 1).trim();
+	}
+}
@@ -0,0 +1,386 @@
+package com.tsp.packets;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import com.tsp.game.actors.Actor;
+import com.tsp.game.actors.Player;
+import com.tsp.game.map.Point3D;
+
+/**
+ * The changes to the world during one or more ticks, as seen by one client
+ * <p>Every {@link Entry} holds only the fields of an actor that differ from what the client
+ * was sent last, flagged in its field mask. An actor the client has not seen before is sent
+ * with {@link #NEW} and every field so the client can create it. Actors that left the world
+ * are listed by id in {@link #getRemoved()}. Actors that are still there but no longer of
+ * interest to the client are listed in {@link #getHidden()}, the client stops drawing them
+ * but keeps what it knows about them.</p>
+ * <p>The packet id is the server tick the snapshot was taken on. The ack is the number of
+ * the last input of the receiving player the server has applied, so the client can drop
+ * the inputs it predicted up to it and replay the rest on top of its position.</p>
+ */
+public class SnapshotPacket extends Packet
+{
+	public static final int X = 1;
+	public static final int Y = 1 << 1;
+	public static final int Z = 1 << 2;
+	public static final int HEALTH = 1 << 3;
+	public static final int SYMBOL = 1 << 4;
+	public static final int ATTACK = 1 << 5;
+	public static final int NEW = 1 << 6;
+	public static final int ALL = X | Y | Z | HEALTH | SYMBOL | ATTACK | NEW;
+
+	private final List<Entry> entries;
+	private final List<Integer> removed;
+	private final List<Integer> hidden;
+	private int ack;
+
+	public SnapshotPacket(int tick)
+	{
+		super(tick);
+		packetType = PacketType.SNAPSHOT_PACKET;
+		entries = new ArrayList<Entry>();
+		removed = new ArrayList<Integer>();
+		hidden = new ArrayList<Integer>();
+	}
+
+	public int getAck()
+	{
+		return ack;
+	}
+
+	/**
+	 * Sets the number of the last input of the receiving player the server applied
+	 * @param ack the input sequence number, 0 if none was applied
+	 */
+	public void setAck(int ack)
+	{
+		this.ack = ack;
+	}
+
+	public void addEntry(Entry entry)
+	{
+		entries.add(entry);
+	}
+
+	public void addRemoved(int actorID)
+	{
+		removed.add(actorID);
+	}
+
+	public void addHidden(int actorID)
+	{
+		hidden.add(actorID);
+	}
+
+	public List<Entry> getEntries()
+	{
+		return entries;
+	}
+
+	public List<Integer> getRemoved()
+	{
+		return removed;
+	}
+
+	public List<Integer> getHidden()
+	{
+		return hidden;
+	}
+
+	/**
+	 * Checks if there is anything to send
+	 * @return true when no actor changed
+	 */
+	public boolean isEmpty()
+	{
+		return entries.isEmpty() && removed.isEmpty() && hidden.isEmpty();
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public String toJSONString()
+	{
+		JSONObject jsonObject = new JSONObject();
+		jsonObject.put("packetID", packetID);
+		jsonObject.put("packetType", packetType.toString());
+		jsonObject.put("ack", ack);
+		JSONArray actors = new JSONArray();
+		for (Entry entry : entries)
+		{
+			actors.add(entry.toJSONObject());
+		}
+		jsonObject.put("actors", actors);
+		JSONArray removedIDs = new JSONArray();
+		removedIDs.addAll(removed);
+		jsonObject.put("removed", removedIDs);
+		JSONArray hiddenIDs = new JSONArray();
+		hiddenIDs.addAll(hidden);
+		jsonObject.put("hidden", hiddenIDs);
+		return jsonObject.toJSONString();
+	}
+
+	/**
+	 * Reads a snapshot written by {@link #toJSONString()}
+	 * @param obj the parsed JSON
+	 * @return the snapshot
+	 * @throws IllegalArgumentException when the JSON is not a valid snapshot
+	 */
+	static SnapshotPacket parseJSON(JSONObject obj) throws IllegalArgumentException
+	{
+		if (!(obj.get("actors") instanceof JSONArray && obj.get("removed") instanceof JSONArray))
+			throw new IllegalArgumentException("Not a valid Snapshot packet");
+		SnapshotPacket snapshot = new SnapshotPacket(((Number) obj.get("packetID")).intValue());
+		if (obj.get("ack") instanceof Number)
+			snapshot.setAck(((Number) obj.get("ack")).intValue());
+		for (Object actor : (JSONArray) obj.get("actors"))
+		{
+			snapshot.addEntry(Entry.parseJSON((JSONObject) actor));
+		}
+		for (Object id : (JSONArray) obj.get("removed"))
+		{
+			snapshot.addRemoved(((Number) id).intValue());
+		}
+		if (obj.get("hidden") instanceof JSONArray)
+		{
+			for (Object id : (JSONArray) obj.get("hidden"))
+			{
+				snapshot.addHidden(((Number) id).intValue());
+			}
+		}
+		return snapshot;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "SnapshotPacket{tick=" + packetID + ", ack=" + ack + ", entries=" + entries + ", removed=" + removed +
+		       ", hidden=" + hidden + "}";
+	}
+
+	/**
+	 * The changed fields of one actor
+	 */
+	public static class Entry
+	{
+		private final int actorID;
+		private final int fields;
+		private int x;
+		private int y;
+		private int z;
+		private int health;
+		private String symbol;
+		private boolean attacking;
+		private int deltaX;
+		private int deltaY;
+		private String name;
+		private Actor.ActorType type;
+		private int color;
+
+		/**
+		 * Creates an entry, the values of the fields not in the mask are ignored
+		 * @param actorID the id of the actor
+		 * @param fields the mask of the fields that are set
+		 */
+		public Entry(int actorID, int fields, int x, int y, int z, int health, String symbol,
+		             boolean attacking, int deltaX, int deltaY, String name, Actor.ActorType type, int color)
+		{
+			this.actorID = actorID;
+			this.fields = fields;
+			this.x = x;
+			this.y = y;
+			this.z = z;
+			this.health = health;
+			this.symbol = symbol;
+			this.attacking = attacking;
+			this.deltaX = deltaX;
+			this.deltaY = deltaY;
+			this.name = name;
+			this.type = type;
+			this.color = color;
+		}
+
+		public int getActorID()
+		{
+			return actorID;
+		}
+
+		public int getFields()
+		{
+			return fields;
+		}
+
+		/**
+		 * Checks if a field is set
+		 * @param field one of the field flags of {@link SnapshotPacket}
+		 * @return true when the field changed
+		 */
+		public boolean has(int field)
+		{
+			return (fields & field) != 0;
+		}
+
+		public int getX()
+		{
+			return x;
+		}
+
+		public int getY()
+		{
+			return y;
+		}
+
+		public int getZ()
+		{
+			return z;
+		}
+
+		public int getHealth()
+		{
+			return health;
+		}
+
+		public String getSymbol()
+		{
+			return symbol;
+		}
+
+		public boolean isAttacking()
+		{
+			return attacking;
+		}
+
+		public int getDeltaX()
+		{
+			return deltaX;
+		}
+
+		public int getDeltaY()
+		{
+			return deltaY;
+		}
+
+		public String getName()
+		{
+			return name;
+		}
+
+		public Actor.ActorType getType()
+		{
+			return type;
+		}
+
+		public int getColor()
+		{
+			return color;
+		}
+
+		/**
+		 * Creates the actor of an entry flagged {@link #NEW}
+		 * @return the actor, a {@link Player} for players
+		 */
+		public Actor newActor()
+		{
+			Actor actor = new Actor(actorID, health, new Point3D(x, y, z), name, type, symbol, color);
+			if (type == Actor.ActorType.ACTOR_PLAYER)
+				return new Player(actor);
+			return actor;
+		}
+
+		/**
+		 * Applies the changed fields to an actor
+		 * @param actor the actor of this entry
+		 */
+		public void applyTo(Actor actor)
+		{
+			if (has(X | Y | Z))
+				actor.moveTo(has(X) ? x : actor.getX(), has(Y) ? y : actor.getY(), has(Z) ? z : actor.getZ());
+			applyStateTo(actor, true);
+		}
+
+		/**
+		 * Applies the changed fields but the position to an actor
+		 * @param actor the actor of this entry
+		 * @param withAttack false to leave the attack of the actor as it is
+		 */
+		public void applyStateTo(Actor actor, boolean withAttack)
+		{
+			if (has(HEALTH))
+				actor.setHealth(health);
+			if (has(SYMBOL))
+				actor.setSymbol(symbol);
+			if (withAttack && has(ATTACK) && actor instanceof Player)
+				((Player) actor).setAttacking(attacking, deltaX, deltaY);
+		}
+
+		@SuppressWarnings("unchecked")
+		JSONObject toJSONObject()
+		{
+			JSONObject jsonObject = new JSONObject();
+			jsonObject.put("id", actorID);
+			if (has(X))
+				jsonObject.put("X", x);
+			if (has(Y))
+				jsonObject.put("Y", y);
+			if (has(Z))
+				jsonObject.put("Z", z);
+			if (has(HEALTH))
+				jsonObject.put("health", health);
+			if (has(SYMBOL))
+				jsonObject.put("symbol", symbol);
+			if (has(ATTACK))
+			{
+				jsonObject.put("attacking", attacking);
+				jsonObject.put("deltaX", deltaX);
+				jsonObject.put("deltaY", deltaY);
+			}
+			if (has(NEW))
+			{
+				jsonObject.put("name", name);
+				jsonObject.put("type", type.toString());
+				jsonObject.put("color", color);
+			}
+			return jsonObject;
+		}
+
+		static Entry parseJSON(JSONObject obj)
+		{
+			int fields = 0;
+			if (obj.containsKey("X"))
+				fields |= X;
+			if (obj.containsKey("Y"))
+				fields |= Y;
+			if (obj.containsKey("Z"))
+				fields |= Z;
+			if (obj.containsKey("health"))
+				fields |= HEALTH;
+			if (obj.containsKey("symbol"))
+				fields |= SYMBOL;
+			if (obj.containsKey("attacking"))
+				fields |= ATTACK;
+			if (obj.containsKey("name"))
+				fields |= NEW;
+			return new Entry(intValue(obj, "id"), fields, intValue(obj, "X"), intValue(obj, "Y"),
+			                 intValue(obj, "Z"), intValue(obj, "health"), (String) obj.get("symbol"),
+			                 Boolean.TRUE.equals(obj.get("attacking")), intValue(obj, "deltaX"),
+			                 intValue(obj, "deltaY"), (String) obj.get("name"),
+			                 obj.containsKey("type") ? Actor.ActorType.valueOf((String) obj.get("type")) : null,
+			                 intValue(obj, "color"));
+		}
+
+		private static int intValue(JSONObject obj, String key)
+		{
+			Object value = obj.get(key);
+			return value instanceof Number ? ((Number) value).intValue() : 0;
+		}
+
+		@Override
+		public String toString()
+		{
+			return toJSONObject().toJSONString();
+		}
+	}
+}
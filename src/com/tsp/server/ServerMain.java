@@ -2,7 +2,7 @@ package com.tsp.server;
 
 import com.tsp.server.controller.TCP.TCPServer;
 import com.tsp.server.controller.UDP.UDPServer;
-import com.tsp.server.model.ServerModel;
+import com.tsp.server.model.InstanceManager;
 
 /**
  * Created with IntelliJ IDEA.
@@ -21,12 +21,11 @@ public class ServerMain
 
 	public static void main(String[] args) throws Exception
 	{
-		ServerModel serverModel = new ServerModel();
-		UDPServer udpServer = new UDPServer(serverModel);
-		TCPServer tcpServer = new TCPServer(serverModel);
+		// The rooms tick on threads of their own, which keep the server alive
+		InstanceManager instanceManager = new InstanceManager();
+		UDPServer udpServer = new UDPServer(instanceManager);
+		TCPServer tcpServer = new TCPServer(instanceManager);
 		tcpServer.start();
 		udpServer.start();
-
-		serverModel.run();
 	}
 }
@@ -0,0 +1,472 @@
+package com.tsp.server.controller.TCP;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.tsp.game.map.Dungeon;
+import com.tsp.game.map.ExploredMap;
+import com.tsp.packets.ActorPacket;
+import com.tsp.packets.ExploredPacket;
+import com.tsp.packets.Packet;
+import com.tsp.packets.Protocol;
+import com.tsp.packets.SnapshotPacket;
+import com.tsp.server.model.InstanceManager;
+import com.tsp.server.model.Interest;
+import com.tsp.server.model.ServerModel;
+import com.tsp.server.model.WorldSnapshot;
+import com.tsp.util.SocketIO;
+
+/**
+ * The state of one client socket owned by a {@link Reactor}
+ * <p>Incoming bytes are accumulated by a {@link SocketIO} until a whole frame is available. Outgoing packets
+ * are encoded straight into one reusable direct buffer and flushed with a single gathering
+ * write per selector wakeup. Every frame is a 4 byte length followed by that many bytes,
+ * same as {@link SocketIO}. The packets inside the frames use the
+ * {@link Protocol} the client asked for in its handshake.</p>
+ * <p>When the socket does not take everything the connection stops encoding until the
+ * leftover bytes are gone. Packets wait in the queue meanwhile and snapshots are only
+ * diffed once the socket drains, so a slow client gets fewer, larger deltas instead of
+ * a growing backlog. A client that falls {@value #MAX_QUEUED_PACKETS} packets behind is dropped.</p>
+ */
+class ClientConnection
+{
+	private static final Logger LOGGER = LoggerFactory.getLogger(ClientConnection.class);
+	private static final int WRITE_BUFFER_SIZE = 16384;
+	// The most shared buffers handed to one gathering write, next to the write buffer
+	private static final int MAX_GATHER = 16;
+	// Queued packets a client may fall behind before it is dropped
+	private static final int MAX_QUEUED_PACKETS = 4096;
+
+	private enum State
+	{
+		HANDSHAKE,
+		// Waiting for the room asked for in the handshake to open
+		JOINING,
+		ACTIVE,
+		CLOSED
+	}
+
+	private final SocketChannel channel;
+	private final Reactor reactor;
+	private final InstanceManager instanceManager;
+	// The room asked for in the handshake, null until then
+	private ServerModel serverModel;
+	private SelectionKey key;
+	private volatile State state = State.HANDSHAKE;
+	private final SocketIO socketIO;
+	// Shared buffers sent ahead of the write buffer, only used during the handshake
+	private final Queue<ByteBuffer> writeQueue;
+	// Encoded frames waiting for the socket, kept ready for writing more into
+	private ByteBuffer out;
+	// True while the socket holds back bytes from the last flush
+	private boolean congested = false;
+	private final Queue<Packet> outGoingPackets;
+	private final AtomicInteger queuedPackets;
+	private final AtomicBoolean overflowed;
+	private final AtomicBoolean writeRequested;
+	// The newest snapshot not yet sent, older unsent ones are simply replaced
+	private final AtomicReference<WorldSnapshot> pendingSnapshot;
+	// The last snapshot sent, TCP delivers in order so this is what the client holds
+	private WorldSnapshot baseline;
+	private Interest interest;
+	private Integer playerID;
+	private boolean viewer = false;
+	private Protocol protocol = Protocol.JSON;
+	private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+
+	public ClientConnection(SocketChannel channel, Reactor reactor, InstanceManager instanceManager)
+	{
+		this.channel = channel;
+		this.reactor = reactor;
+		this.instanceManager = instanceManager;
+		socketIO = new SocketIO(channel);
+		writeQueue = new LinkedList<ByteBuffer>();
+		out = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+		outGoingPackets = new ConcurrentLinkedQueue<Packet>();
+		queuedPackets = new AtomicInteger();
+		overflowed = new AtomicBoolean(false);
+		writeRequested = new AtomicBoolean(false);
+		pendingSnapshot = new AtomicReference<WorldSnapshot>();
+	}
+
+	SocketChannel getChannel()
+	{
+		return channel;
+	}
+
+	void setKey(SelectionKey key)
+	{
+		this.key = key;
+	}
+
+	/**
+	 * Queues a packet for this client, safe to call from any thread
+	 * @param packet the packet to send
+	 */
+	public void addOutGoingPacket(Packet packet)
+	{
+		if (state == State.CLOSED)
+			return;
+		outGoingPackets.add(packet);
+		if (queuedPackets.incrementAndGet() > MAX_QUEUED_PACKETS)
+		{
+			dropSlowClient();
+			return;
+		}
+		if (state == State.ACTIVE && writeRequested.compareAndSet(false, true))
+			reactor.requestWrite(this);
+	}
+
+	/**
+	 * Queues a batch of packets for this client, safe to call from any thread
+	 * @param packets the packets to send
+	 */
+	public void addOutGoingPackets(Collection<Packet> packets)
+	{
+		if (state == State.CLOSED)
+			return;
+		outGoingPackets.addAll(packets);
+		if (queuedPackets.addAndGet(packets.size()) > MAX_QUEUED_PACKETS)
+		{
+			dropSlowClient();
+			return;
+		}
+		if (state == State.ACTIVE && writeRequested.compareAndSet(false, true))
+			reactor.requestWrite(this);
+	}
+
+	/**
+	 * Queues the world state of a tick for this client, safe to call from any thread
+	 * @param snapshot the snapshot to diff against what the client was last sent
+	 */
+	public void setSnapshot(WorldSnapshot snapshot)
+	{
+		if (state == State.CLOSED)
+			return;
+		pendingSnapshot.set(snapshot);
+		if (state == State.ACTIVE && writeRequested.compareAndSet(false, true))
+			reactor.requestWrite(this);
+	}
+
+	/**
+	 * Called on the reactor thread once the channel is registered, the client speaks first
+	 */
+	void open() throws IOException
+	{
+	}
+
+	/**
+	 * Has the reactor close the connection, the socket is full so it will not wake up by itself
+	 */
+	private void dropSlowClient()
+	{
+		if (overflowed.compareAndSet(false, true))
+			reactor.requestWrite(this);
+	}
+
+	void enableWriteInterest()
+	{
+		if (overflowed.get())
+		{
+			LOGGER.info("Dropping client {}, it fell {} packets behind", playerID, queuedPackets.get());
+			close();
+			return;
+		}
+		if (key != null && key.isValid())
+			key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+	}
+
+	void processIncoming() throws IOException
+	{
+		if (socketIO.ReadAvailable() < 0)
+		{
+			close();
+			return;
+		}
+		ByteBuffer frame;
+		while (state != State.CLOSED && (frame = socketIO.NextFrame()) != null)
+		{
+			processFrame(frame);
+		}
+	}
+
+	private void processFrame(ByteBuffer frame) throws IOException
+	{
+		if (state == State.HANDSHAKE)
+		{
+			processHello(socketIO.DecodeString(frame));
+			return;
+		}
+		try
+		{
+			Packet packet = protocol.decode(frame);
+			if (packet != null && packet.getPacketType() == Packet.PacketType.QUIT_PACKET)
+				close();
+		}
+		catch (IllegalArgumentException e)
+		{
+			LOGGER.info("Dropping bad packet: {}", e.getMessage());
+		}
+	}
+
+	private void processHello(String hello)
+	{
+		protocol = Protocol.fromHello(hello);
+		final String name = Protocol.nameFromHello(hello);
+		final String room = Protocol.roomFromHello(hello);
+		state = State.JOINING;
+		instanceManager.join(room, new InstanceManager.JoinListener()
+		{
+			@Override
+			public void joined(final ServerModel model)
+			{
+				// Opening a room happens elsewhere, the rest of the handshake is back on the reactor
+				reactor.execute(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						try
+						{
+							finishHello(name, room, model);
+						}
+						catch (IOException e)
+						{
+							LOGGER.info("Closing connection: {}", e.toString());
+							close();
+						}
+					}
+				});
+			}
+		});
+	}
+
+	private void finishHello(String name, String room, ServerModel model) throws IOException
+	{
+		if (state == State.CLOSED)
+		{
+			// The client left while its room was opening
+			if (model != null)
+				instanceManager.leave(model);
+			return;
+		}
+		serverModel = model;
+		if (serverModel == null)
+		{
+			LOGGER.info("Turning away {}, room '{}' can not be opened", name, room);
+			close();
+			return;
+		}
+		sendDungeon(serverModel.getEncodedDungeon());
+		viewer = name.equals("TSPVIEWER");
+		// The other actors arrive with the first snapshot, which is diffed against nothing
+		baseline = null;
+		if (viewer)
+		{
+			writeInt(-1);
+			interest = Interest.everything();
+		}
+		else
+		{
+			playerID = instanceManager.addPlayer(serverModel, name);
+			if (playerID < 0)
+			{
+				// The client quits on -1, send it what we can before hanging up
+				LOGGER.info("Turning away {}, no room for a player in room '{}'", name, room);
+				writeInt(-1);
+				flush();
+				close();
+				return;
+			}
+			writeInt(playerID);
+			writePacket(new ActorPacket(serverModel.getPlayer(playerID)));
+			// A player coming back sees again what it explored last time
+			ExploredMap explored = serverModel.getExplored(playerID);
+			if (explored != null && !explored.isEmpty())
+				writePacket(new ExploredPacket(explored));
+			Dungeon dungeon = serverModel.getDungeon();
+			interest = Interest.around(playerID, dungeon.getFogOfWarWidth(), dungeon.getFogOfWarHeight());
+		}
+		state = State.ACTIVE;
+		TCPServer.joinRoom(serverModel, this);
+		writeRequested.set(true);
+		enableWriteInterest();
+	}
+
+	void processOutgoing() throws IOException
+	{
+		if (congested && !flush())
+			return;
+		if (state == State.ACTIVE)
+		{
+			writeRequested.set(false);
+			// Encode at most about a buffer full per wakeup, the rest waits for the socket
+			Packet packet;
+			while (out.position() < WRITE_BUFFER_SIZE && (packet = outGoingPackets.poll()) != null)
+			{
+				queuedPackets.decrementAndGet();
+				writePacket(packet);
+			}
+			WorldSnapshot snapshot = out.position() < WRITE_BUFFER_SIZE ? pendingSnapshot.getAndSet(null) : null;
+			if (snapshot != null)
+			{
+				SnapshotPacket delta = snapshot.diff(baseline, interest);
+				baseline = snapshot;
+				if (!delta.isEmpty())
+					writePacket(delta);
+			}
+		}
+		if (!flush())
+			return;
+		if (key.isValid())
+			key.interestOps(SelectionKey.OP_READ);
+		if ((!outGoingPackets.isEmpty() || pendingSnapshot.get() != null)
+		    && writeRequested.compareAndSet(false, true))
+			enableWriteInterest();
+	}
+
+	/**
+	 * Writes the shared buffers and then the write buffer with as few calls as possible
+	 * @return true when everything was written, false when the socket is full
+	 * @throws IOException when the socket errors
+	 */
+	private boolean flush() throws IOException
+	{
+		while (true)
+		{
+			int count = 0;
+			for (ByteBuffer buf : writeQueue)
+			{
+				if (count == gather.length - 1)
+					break;
+				gather[count++] = buf;
+			}
+			// The write buffer may only follow once every shared buffer is in the write
+			boolean withOut = count == writeQueue.size();
+			if (withOut && count == 0 && out.position() == 0)
+			{
+				congested = false;
+				return true;
+			}
+			out.flip();
+			if (withOut)
+				gather[count++] = out;
+			channel.write(gather, 0, count);
+			// The socket took less than offered, wait for it to drain
+			boolean full = gather[count - 1].hasRemaining();
+			out.compact();
+			for (int i = 0; i < count; i++)
+			{
+				gather[i] = null;
+			}
+			while (!writeQueue.isEmpty() && !writeQueue.peek().hasRemaining())
+			{
+				writeQueue.poll();
+			}
+			congested = full;
+			if (full)
+				return false;
+			if (withOut)
+				return true;
+		}
+	}
+
+	/**
+	 * Queues the whole dungeon as a single frame, the encoded block is shared
+	 * between connections so only the length prefix is allocated here.
+	 * Must be called before anything is put in the write buffer.
+	 * @param encoded the dungeon encoded by {@link com.tsp.game.map.DungeonCodec}
+	 */
+	private void sendDungeon(ByteBuffer encoded)
+	{
+		ByteBuffer length = ByteBuffer.allocate(4);
+		length.putInt(encoded.remaining());
+		length.flip();
+		writeQueue.add(length);
+		writeQueue.add(encoded);
+		enableWriteInterest();
+	}
+
+	private void writeInt(int value)
+	{
+		ensureRoom(4);
+		out.putInt(value);
+	}
+
+	/**
+	 * Encodes the packet as a frame at the end of the write buffer, growing it if needed
+	 * @param packet the packet to send
+	 */
+	private void writePacket(Packet packet)
+	{
+		int start = out.position();
+		while (true)
+		{
+			try
+			{
+				out.position(start + 4);
+				protocol.encode(packet, out);
+				break;
+			}
+			catch (BufferOverflowException e)
+			{
+				out.position(start);
+				grow(out.capacity() * 2);
+			}
+		}
+		out.putInt(start, out.position() - start - 4);
+	}
+
+	private void ensureRoom(int bytes)
+	{
+		if (out.remaining() < bytes)
+			grow(Math.max(out.capacity() * 2, out.position() + bytes));
+	}
+
+	private void grow(int capacity)
+	{
+		ByteBuffer bigger = ByteBuffer.allocateDirect(capacity);
+		out.flip();
+		bigger.put(out);
+		out = bigger;
+	}
+
+	/**
+	 * Closes the socket and removes the player, may be called more than once
+	 */
+	public void close()
+	{
+		if (state == State.CLOSED)
+			return;
+		state = State.CLOSED;
+		TCPServer.removeConnection(this, serverModel);
+		if (key != null)
+			key.cancel();
+		try
+		{
+			channel.close();
+		}
+		catch (IOException e)
+		{
+			LOGGER.error("{}", e);
+		}
+		if (serverModel == null)
+			return;
+		if (!viewer && playerID != null && playerID >= 0)
+			instanceManager.removePlayer(serverModel, playerID);
+		instanceManager.leave(serverModel);
+	}
+}
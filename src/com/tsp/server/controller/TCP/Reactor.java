@@ -0,0 +1,171 @@
+package com.tsp.server.controller.TCP;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A single selector thread that multiplexes many {@link ClientConnection}s
+ * <p>Other threads never touch the selector or the interest ops directly, they
+ * hand connections over through the pending queues and wake the selector up.</p>
+ */
+class Reactor extends Thread
+{
+	private static final Logger LOGGER = LoggerFactory.getLogger(Reactor.class);
+
+	private final Selector selector;
+	private final Queue<ClientConnection> pendingRegistrations;
+	private final Queue<ClientConnection> pendingWrites;
+	private final Queue<Runnable> pendingTasks;
+	private volatile boolean running = true;
+
+	public Reactor(int number) throws IOException
+	{
+		super("TCP Reactor " + number);
+		selector = Selector.open();
+		pendingRegistrations = new ConcurrentLinkedQueue<ClientConnection>();
+		pendingWrites = new ConcurrentLinkedQueue<ClientConnection>();
+		pendingTasks = new ConcurrentLinkedQueue<Runnable>();
+	}
+
+	/**
+	 * Hands a freshly accepted connection over to this reactor
+	 * @param connection the connection to register
+	 */
+	public void register(ClientConnection connection)
+	{
+		pendingRegistrations.add(connection);
+		selector.wakeup();
+	}
+
+	/**
+	 * Asks the reactor to turn on write interest for the connection
+	 * @param connection the connection with pending output
+	 */
+	public void requestWrite(ClientConnection connection)
+	{
+		pendingWrites.add(connection);
+		selector.wakeup();
+	}
+
+	/**
+	 * Runs a task on the reactor thread, for work that touches connections it owns
+	 * @param task the task
+	 */
+	public void execute(Runnable task)
+	{
+		pendingTasks.add(task);
+		selector.wakeup();
+	}
+
+	@Override
+	public void run()
+	{
+		while (running)
+		{
+			try
+			{
+				selector.select();
+				registerPending();
+				runTasks();
+				enableWrites();
+
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext())
+				{
+					SelectionKey selKey = it.next();
+					it.remove();
+					processSelectionKey(selKey);
+				}
+			}
+			catch (ClosedSelectorException e)
+			{
+				break;
+			}
+			catch (IOException e)
+			{
+				LOGGER.error("{}", e);
+			}
+		}
+	}
+
+	private void registerPending()
+	{
+		ClientConnection connection;
+		while ((connection = pendingRegistrations.poll()) != null)
+		{
+			try
+			{
+				SocketChannel channel = connection.getChannel();
+				channel.configureBlocking(false);
+				connection.setKey(channel.register(selector, SelectionKey.OP_READ, connection));
+				connection.open();
+			}
+			catch (IOException e)
+			{
+				LOGGER.info("Could not register connection: {}", e.toString());
+				connection.close();
+			}
+		}
+	}
+
+	private void runTasks()
+	{
+		Runnable task;
+		while ((task = pendingTasks.poll()) != null)
+		{
+			task.run();
+		}
+	}
+
+	private void enableWrites()
+	{
+		ClientConnection connection;
+		while ((connection = pendingWrites.poll()) != null)
+		{
+			connection.enableWriteInterest();
+		}
+	}
+
+	private void processSelectionKey(SelectionKey selKey)
+	{
+		ClientConnection connection = (ClientConnection) selKey.attachment();
+		try
+		{
+			if (selKey.isValid() && selKey.isReadable())
+			{
+				connection.processIncoming();
+			}
+			if (selKey.isValid() && selKey.isWritable())
+			{
+				connection.processOutgoing();
+			}
+		}
+		catch (IOException e)
+		{
+			LOGGER.info("Closing connection: {}", e.toString());
+			connection.close();
+		}
+	}
+
+	public void quit()
+	{
+		running = false;
+		try
+		{
+			selector.close();
+		}
+		catch (IOException e)
+		{
+			LOGGER.error("{}", e);
+		}
+	}
+}
@@ -1,12 +1,17 @@
 package com.tsp.server.controller.TCP;
 
 import com.tsp.packets.Packet;
+import com.tsp.server.model.InstanceManager;
 import com.tsp.server.model.ServerModel;
+import com.tsp.server.model.WorldSnapshot;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Created with IntelliJ IDEA.
@@ -17,81 +22,146 @@ import java.nio.channels.SocketChannel;
  */
 public class TCPServer extends Thread
 {
-	//private static ServerSocket serverSocket = null;
 	private static ServerSocketChannel serverSocketChannel = null;
-	// The client socket.
-	//private static Socket clientSocket = null;
-	private static SocketChannel clientSocketChannel = null;
 
-	// This chat server can accept up to maxClientsCount clients' connections.
-	private static final int maxClientsCount = 8;
-	private static final clientThread[] threads = new clientThread[maxClientsCount];
-	private final ServerModel serverModel;
-	private static boolean quit = false;
+	// Every connected client, spread over a small number of reactor threads
+	private static final Set<ClientConnection> connections =
+			ConcurrentHashMap.<ClientConnection>newKeySet();
+	// The clients past their handshake, by the room they joined
+	private static final ConcurrentHashMap<ServerModel, Set<ClientConnection>> rooms =
+			new ConcurrentHashMap<ServerModel, Set<ClientConnection>>();
+	private static Reactor[] reactors = new Reactor[0];
+	private final InstanceManager instanceManager;
+	private static volatile boolean quit = false;
 
-	public TCPServer(ServerModel sm) throws IOException
+	/**
+	 * Creates a TCP Server with one reactor per two available processors
+	 * @param instanceManager the rooms the clients play in
+	 * @throws IOException when the port can not be bound
+	 */
+	public TCPServer(InstanceManager instanceManager) throws IOException
+	{
+		this(instanceManager, Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+	}
+
+	/**
+	 * Creates a TCP Server
+	 * @param instanceManager the rooms the clients play in
+	 * @param reactorCount the number of selector threads serving the clients of every room
+	 * @throws IOException when the port can not be bound
+	 */
+	public TCPServer(InstanceManager instanceManager, int reactorCount) throws IOException
 	{
 		super("TCP Server");
-		//serverSocket = new ServerSocket(12000);
 		serverSocketChannel = ServerSocketChannel.open();
-		serverSocketChannel.bind(new InetSocketAddress(12000), 8);
-		serverModel = sm;
+		serverSocketChannel.bind(new InetSocketAddress(12000), 128);
+		this.instanceManager = instanceManager;
+		reactors = new Reactor[reactorCount];
+		for (int i = 0; i < reactorCount; i++)
+		{
+			reactors[i] = new Reactor(i);
+		}
 	}
 
 	@Override
 	public void run()
 	{
+		for (Reactor reactor : reactors)
+		{
+			reactor.start();
+		}
+		int next = 0;
 		while (!quit)
 		{
 			try
 			{
-				clientSocketChannel = serverSocketChannel.accept();
-				int i = 0;
-				for (i = 0; i < maxClientsCount; i++)
-				{
-					if (threads[i] == null)
-					{
-						(threads[i] = new clientThread(clientSocketChannel, threads, serverModel)).start();
-						break;
-					}
-				}
-				if (i == maxClientsCount)
-				{
-					clientSocketChannel.close();
-				}
-				Thread.sleep(50);
+				SocketChannel clientSocketChannel = serverSocketChannel.accept();
+				Reactor reactor = reactors[next];
+				next = (next + 1) % reactors.length;
+				ClientConnection connection = new ClientConnection(clientSocketChannel, reactor, instanceManager);
+				connections.add(connection);
+				reactor.register(connection);
 			}
 			catch (IOException e)
 			{
 				System.out.println(e);
 			}
-			catch (InterruptedException e)
-			{
-				e.printStackTrace();  //To change body of catch statement use File | Settings | File Templates.
-			}
+		}
+	}
 
+	/**
+	 * Sends a whole tick worth of packets to the clients of a room, each client is woken up at most once
+	 * @param room the room the packets are for
+	 * @param packets the packets in the order they should arrive
+	 */
+	public static void addOutGoingPackets(ServerModel room, Collection<Packet> packets)
+	{
+		Set<ClientConnection> members = rooms.get(room);
+		if (members == null)
+			return;
+		for (ClientConnection connection : members)
+		{
+			connection.addOutGoingPackets(packets);
 		}
 	}
 
-	public static void addOutGoingPacket(Packet e)
+	/**
+	 * Hands the state of a room at the end of a tick to its clients, each client
+	 * gets only what changed since the last snapshot it was sent
+	 * @param room the room the snapshot was taken in
+	 * @param snapshot the snapshot of the tick
+	 */
+	public static void publish(ServerModel room, WorldSnapshot snapshot)
 	{
-		for (int i = 0; i < maxClientsCount; i++)
+		Set<ClientConnection> members = rooms.get(room);
+		if (members == null)
+			return;
+		for (ClientConnection connection : members)
 		{
-			if (threads[i] != null)
+			connection.setSnapshot(snapshot);
+		}
+	}
+
+	static void joinRoom(ServerModel room, ClientConnection connection)
+	{
+		// Joins and leaves are rare, locking keeps a join from landing in a set being dropped
+		synchronized (rooms)
+		{
+			Set<ClientConnection> members = rooms.get(room);
+			if (members == null)
 			{
-				threads[i].addOutGoingPacket(e);
+				members = ConcurrentHashMap.<ClientConnection>newKeySet();
+				rooms.put(room, members);
 			}
+			members.add(connection);
+		}
+	}
+
+	static void removeConnection(ClientConnection connection, ServerModel room)
+	{
+		connections.remove(connection);
+		if (room == null)
+			return;
+		synchronized (rooms)
+		{
+			Set<ClientConnection> members = rooms.get(room);
+			if (members != null && members.remove(connection) && members.isEmpty())
+				rooms.remove(room);
 		}
 	}
 
 	public static void quit() throws IOException
 	{
-		for (int i = 0; i < maxClientsCount; i++)
+		quit = true;
+		for (ClientConnection connection : connections)
 		{
-			if (threads[i] != null)
-			{
-				threads[i].quit();
-			}
+			connection.close();
+		}
+		for (Reactor reactor : reactors)
+		{
+			reactor.quit();
 		}
+		if (serverSocketChannel != null)
+			serverSocketChannel.close();
 	}
 }
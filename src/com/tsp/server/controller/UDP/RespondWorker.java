@@ -1,82 +1,77 @@
 package com.tsp.server.controller.UDP;
 
 import com.tsp.packets.Packet;
-import com.tsp.server.model.ServerModel;
-import org.json.simple.JSONArray;
-import org.json.simple.JSONObject;
-import org.json.simple.JSONValue;
-import org.json.simple.parser.ParseException;
+import com.tsp.packets.PacketCodec;
+import com.tsp.packets.Protocol;
+import com.tsp.server.model.InstanceManager;
 
-import java.io.ByteArrayInputStream;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.nio.charset.Charset;
+import java.nio.ByteBuffer;
 
 /**
+ * Decodes the datagrams received by a {@link UDPServer} and hands them to the room of their player
+ * <p>Binary packets and JSON packets are told apart by their first byte, see
+ * {@link PacketCodec#isBinary(ByteBuffer)}. The packet is decoded from the pooled
+ * buffer it was received in, which goes back to the pool right after.</p>
+ *
  * Created with IntelliJ IDEA.
  * User: Tim
  * Date: 10/14/13
  * Time: 2:32 PM
- * To change this template use File | Settings | File Templates.
  */
-public class RespondWorker implements Runnable
+public class RespondWorker extends Thread
 {
 
-	DatagramSocket socket = null;
-	DatagramPacket packet = null;
-	ServerModel model = null;
+	UDPServer server = null;
+	InstanceManager instanceManager = null;
 
-	public RespondWorker(DatagramSocket socket, DatagramPacket packet, ServerModel model)
+	public RespondWorker(UDPServer server, InstanceManager instanceManager)
 	{
-		this.socket = socket;
-		this.packet = packet;
-		this.model = model;
+		this.server = server;
+		this.instanceManager = instanceManager;
 	}
 
+	@Override
 	public void run()
 	{
-		process();
-	}
-
-	private byte[] process()
-	{
-		byte[] data = packet.getData();
-		InputStreamReader input = new InputStreamReader(
-				new ByteArrayInputStream(data), Charset.forName("UTF-8"));
-
-		StringBuilder str = new StringBuilder();
 		try
 		{
-			for (int value; (value = input.read()) != -1; )
-				str.append((char) value);
+			while (!isInterrupted())
+			{
+				ByteBuffer buf = server.take();
+				try
+				{
+					process(buf);
+				}
+				finally
+				{
+					server.recycle(buf);
+				}
+			}
 		}
-		catch (IOException e)
+		catch (InterruptedException e)
 		{
-			e.printStackTrace();
+			// The server is shutting down
 		}
-		Object parsedObject = null;
+	}
+
+	private void process(ByteBuffer buf)
+	{
+		Protocol protocol = PacketCodec.isBinary(buf) ? Protocol.BINARY : Protocol.JSON;
+		Packet packet;
 		try
 		{
-			parsedObject = JSONValue.parseWithException(str.toString().trim());
-				if (parsedObject instanceof JSONObject)
-				{
-					Packet packet1 = Packet.parseJSONObject((JSONObject) parsedObject);
-					model.processPacket(packet1);
-				}
-		}
-		catch (ParseException e)
-		{
-			e.printStackTrace();  //To change body of catch statement use File | Settings | File Templates.
+			packet = protocol.decode(buf);
 		}
-		for (int i = 0; i < data.length; i++)
+		catch (RuntimeException e)
 		{
-			data[i] = 0;
+			// Not only IllegalArgumentException, JSON with the right keys but values missing or of
+			// the wrong type fails with whatever the parser throws, and must not end the worker
+			server.countMalformed();
+			return;
 		}
-
-
-		//System.out.println(str.toString());
-		return null;
+		if (packet == null)
+			server.countMalformed();
+		else if (!instanceManager.putIncoming(packet))
+			server.countDropped();
 	}
 }
@@ -1,69 +1,214 @@
 package com.tsp.server.controller.UDP;
 
-import com.tsp.server.model.ServerModel;
+import com.tsp.server.model.InstanceManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
-import java.net.SocketException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
+ * Receives the commands clients send over UDP
+ * <p>Datagrams are read straight into buffers taken from a fixed pool and handed to a
+ * fixed number of {@link RespondWorker}s through a bounded queue. When the pool runs dry
+ * or the queue is full the datagram is dropped and counted instead of piling up threads
+ * or memory, clients resend their state on the next input anyway. Commands are routed
+ * to the room of the player that sent them.</p>
+ *
  * Created with IntelliJ IDEA.
  * User: Tim
  * Date: 10/14/13
  * Time: 2:17 PM
- * To change this template use File | Settings | File Templates.
  */
 public class UDPServer extends Thread
 {
-	private static boolean quit =false;
-	ServerModel model;
+	private static final Logger LOGGER = LoggerFactory.getLogger(UDPServer.class);
+	// Larger than any command, smaller than an ethernet frame
+	static final int DATAGRAM_SIZE = 1500;
+	private static final int POOL_SIZE = 1024;
+	private static final int QUEUE_SIZE = 1024;
+	private static final long REPORT_NANOS = 10000000000L;
 
-	public UDPServer(ServerModel serverModel)
+	private static volatile boolean quit = false;
+	private static volatile DatagramChannel channel;
+	InstanceManager instanceManager;
+	private final int port;
+	private final int workerCount;
+	private final BlockingQueue<ByteBuffer> freeBuffers;
+	private final BlockingQueue<ByteBuffer> received;
+	private final AtomicLong receivedCount = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong malformed = new AtomicLong();
+
+	/**
+	 * Creates a server on port 12000 with as many workers as the tsp.udpWorkers system property, 2 by default
+	 * @param instanceManager the rooms the commands are handed to
+	 */
+	public UDPServer(InstanceManager instanceManager)
+	{
+		this(instanceManager, 12000, Integer.getInteger("tsp.udpWorkers", 2));
+	}
+
+	/**
+	 * Creates a server
+	 * @param instanceManager the rooms the commands are handed to
+	 * @param port the port to listen on
+	 * @param workerCount the number of threads decoding datagrams
+	 */
+	public UDPServer(InstanceManager instanceManager, int port, int workerCount)
 	{
 		super("UDP Server");
-		this.model = serverModel;
+		this.instanceManager = instanceManager;
+		this.port = port;
+		this.workerCount = Math.max(1, workerCount);
+		freeBuffers = new ArrayBlockingQueue<ByteBuffer>(POOL_SIZE);
+		received = new ArrayBlockingQueue<ByteBuffer>(QUEUE_SIZE);
+		for (int i = 0; i < POOL_SIZE; i++)
+		{
+			freeBuffers.add(ByteBuffer.allocateDirect(DATAGRAM_SIZE));
+		}
 	}
 
 	@Override
 	public void run()
 	{
-		DatagramSocket serverSocket = null;
+		RespondWorker[] workers = new RespondWorker[workerCount];
 		try
 		{
-			serverSocket = new DatagramSocket(12000);
-			while(!quit)
+			channel = DatagramChannel.open();
+			channel.bind(new InetSocketAddress(port));
+			for (int i = 0; i < workers.length; i++)
 			{
-				byte[] receiveData = new byte[1024];
-				DatagramPacket receivePacket = new DatagramPacket(receiveData, receiveData.length);
-				serverSocket.receive(receivePacket);
-				new Thread(new RespondWorker(serverSocket, receivePacket, model)).start();
-				Thread.sleep(50);
+				workers[i] = new RespondWorker(this, instanceManager);
+				workers[i].setName("UDP Worker " + i);
+				workers[i].setDaemon(true);
+				workers[i].start();
+			}
+			long nextReport = System.nanoTime() + REPORT_NANOS;
+			ByteBuffer discard = ByteBuffer.allocateDirect(DATAGRAM_SIZE);
+			ByteBuffer buf = null;
+			while (!quit)
+			{
+				if (buf == null)
+					buf = freeBuffers.poll();
+				if (buf == null)
+				{
+					// Every buffer is waiting to be decoded, drop datagrams until one is back
+					discard.clear();
+					channel.receive(discard);
+					dropped.incrementAndGet();
+					continue;
+				}
+				buf.clear();
+				channel.receive(buf);
+				receivedCount.incrementAndGet();
+				buf.flip();
+				if (received.offer(buf))
+					buf = null;
+				else
+					dropped.incrementAndGet();
+
+				if (System.nanoTime() - nextReport > 0)
+				{
+					nextReport = System.nanoTime() + REPORT_NANOS;
+					LOGGER.info("Datagrams received {}, dropped {}, malformed {}", receivedCount.get(),
+					            dropped.get(), malformed.get());
+				}
 			}
 		}
-		catch (SocketException e)
+		catch (ClosedChannelException e)
 		{
-			e.printStackTrace();  //To change body of catch statement use File | Settings | File Templates.
+			LOGGER.info("UDP channel closed");
 		}
 		catch (IOException e)
 		{
-			e.printStackTrace();  //To change body of catch statement use File | Settings | File Templates.
+			LOGGER.error("{}", e);
 		}
-		catch (InterruptedException e)
+		finally
 		{
-			e.printStackTrace();  //To change body of catch statement use File | Settings | File Templates.
+			for (RespondWorker worker : workers)
+			{
+				if (worker != null)
+					worker.interrupt();
+			}
+			closeChannel();
 		}
-		finally
+	}
+
+	/**
+	 * Waits for the next datagram, called by the workers
+	 * @return a buffer holding the datagram, must be given back with {@link #recycle(ByteBuffer)}
+	 * @throws InterruptedException when the server is shutting down
+	 */
+	ByteBuffer take() throws InterruptedException
+	{
+		return received.take();
+	}
+
+	void recycle(ByteBuffer buf)
+	{
+		freeBuffers.offer(buf);
+	}
+
+	void countMalformed()
+	{
+		malformed.incrementAndGet();
+	}
+
+	void countDropped()
+	{
+		dropped.incrementAndGet();
+	}
+
+	public long getReceivedCount()
+	{
+		return receivedCount.get();
+	}
+
+	/**
+	 * Gets the number of datagrams thrown away because the server could not keep up
+	 * @return the drop count
+	 */
+	public long getDroppedCount()
+	{
+		return dropped.get();
+	}
+
+	/**
+	 * Gets the number of datagrams that were not valid packets
+	 * @return the malformed count
+	 */
+	public long getMalformedCount()
+	{
+		return malformed.get();
+	}
+
+	private static void closeChannel()
+	{
+		DatagramChannel open = channel;
+		if (open != null && open.isOpen())
 		{
-			if(serverSocket != null && serverSocket.isBound())
-				serverSocket.close();
+			try
+			{
+				open.close();
+			}
+			catch (IOException e)
+			{
+				LOGGER.error("{}", e);
+			}
 		}
 	}
 
 	public static void quit()
 	{
 		quit = true;
+		closeChannel();
 	}
 
 }
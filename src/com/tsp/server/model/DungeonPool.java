@@ -0,0 +1,166 @@
+package com.tsp.server.model;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.tsp.game.map.Dungeon;
+
+/**
+ * Keeps a few dungeons generated ahead of time so new rooms start right away
+ * <p>A background thread fills the pool up to its size when it is created and builds a
+ * new dungeon every time one is taken from it. If the pool runs dry, {@link #take()} builds
+ * one on the spot instead of waiting, the dungeons already on their way fill it again. The
+ * pool never has more dungeons waiting and being built than its size, so none is thrown
+ * away. A dungeon that fails to build is logged and another one is started in its place
+ * a little later.
+ * The dungeons come out ready to use, with every tile revealed as the server needs them.</p>
+ * <p>Seeds are either random or count up from a given first seed, in which case the
+ * server goes through the same dungeons every time it runs.</p>
+ */
+public class DungeonPool
+{
+	private static final Logger LOGGER = LoggerFactory.getLogger(DungeonPool.class);
+	// How long to wait before building again after a dungeon failed to build
+	private static final long RETRY_DELAY_MS = 1000;
+
+	private final int cols;
+	private final int rows;
+	private final int floors;
+	private final BlockingQueue<Dungeon> ready;
+	// Null when the pool keeps nothing ahead
+	private final ScheduledExecutorService refiller;
+	// The next seed, null for random seeds
+	private final AtomicLong nextSeed;
+
+	/**
+	 * Creates a pool and starts filling it
+	 * @param cols the columns of every dungeon
+	 * @param rows the rows of every dungeon
+	 * @param floors the floors of every dungeon
+	 * @param size the number of dungeons kept ready, 0 builds every dungeon when it is taken
+	 * @param firstSeed the seed of the first dungeon, each next one adds one, null for random seeds
+	 */
+	public DungeonPool(int cols, int rows, int floors, int size, Long firstSeed)
+	{
+		this.cols = cols;
+		this.rows = rows;
+		this.floors = floors;
+		nextSeed = firstSeed == null ? null : new AtomicLong(firstSeed);
+		ready = new ArrayBlockingQueue<Dungeon>(Math.max(1, size));
+		if (size > 0)
+		{
+			refiller = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+			{
+				@Override
+				public Thread newThread(Runnable runnable)
+				{
+					Thread thread = new Thread(runnable, "DungeonPool");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			for (int i = 0; i < size; i++)
+			{
+				refill();
+			}
+		}
+		else
+		{
+			refiller = null;
+		}
+	}
+
+	/**
+	 * Gets a dungeon nobody else uses
+	 * @return a ready dungeon, built now if none was waiting
+	 */
+	public Dungeon take()
+	{
+		Dungeon dungeon = ready.poll();
+		if (dungeon != null)
+		{
+			refill();
+			return dungeon;
+		}
+		if (refiller != null)
+			LOGGER.info("Dungeon pool is empty, generating one now");
+		return generate();
+	}
+
+	/**
+	 * Gets the number of dungeons waiting to be taken
+	 */
+	public int getReady()
+	{
+		return ready.size();
+	}
+
+	/**
+	 * Stops generating, dungeons can still be taken and are then built on the spot
+	 */
+	public void shutdown()
+	{
+		if (refiller != null)
+			refiller.shutdownNow();
+	}
+
+	private void refill()
+	{
+		refill(0);
+	}
+
+	/**
+	 * Builds a dungeon in the background and puts it in the pool
+	 * @param delay how long to wait before starting, in milliseconds
+	 */
+	private void refill(long delay)
+	{
+		try
+		{
+			refiller.schedule(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					Dungeon dungeon;
+					try
+					{
+						dungeon = generate();
+					}
+					catch (RuntimeException e)
+					{
+						// Keep the pool at its size, the next try gets another seed
+						LOGGER.error("Could not generate a dungeon for the pool", e);
+						refill(RETRY_DELAY_MS);
+						return;
+					}
+					ready.offer(dungeon);
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		}
+		catch (RejectedExecutionException e)
+		{
+			// Shut down
+		}
+	}
+
+	private Dungeon generate()
+	{
+		long seed = nextSeed == null ? ThreadLocalRandom.current().nextLong() : nextSeed.getAndIncrement();
+		long start = System.nanoTime();
+		Dungeon dungeon = new Dungeon(cols, rows, floors, seed);
+		dungeon.revealAll();
+		LOGGER.info("Generated dungeon from seed {} in {} ms", seed, (System.nanoTime() - start) / 1000000);
+		return dungeon;
+	}
+}
@@ -0,0 +1,59 @@
+package com.tsp.server.model;
+
+import java.util.ArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.tsp.game.actors.AI;
+import com.tsp.game.actors.Actor;
+import com.tsp.game.actors.Player;
+import com.tsp.packets.Packet;
+
+/**
+ * One floor of the dungeon, the unit the simulation is split in
+ * <p>A floor owns the players standing on it, its cells of the actor index and the
+ * commands its players sent this tick. All of it is only touched while holding the
+ * floors lock, so joins, leaves and the tick of different floors never wait on each
+ * other and the floors of a tick can be simulated in parallel. Players only change
+ * floor at the end of a tick, see {@link Transfer}.</p>
+ */
+final class Floor
+{
+	final int z;
+	final ReentrantLock lock = new ReentrantLock();
+	final ArrayList<Player> players = new ArrayList<Player>();
+	final ArrayList<AI> ais = new ArrayList<AI>();
+	// The commands of this tick, in the order they are applied
+	final ArrayList<Packet> commands = new ArrayList<Packet>();
+	// Players leaving the floor at the end of this tick
+	final ArrayList<Transfer> leaving = new ArrayList<Transfer>();
+	// Packets for every client raised on this floor during the tick, sent in floor order
+	final ArrayList<Packet> outgoing = new ArrayList<Packet>();
+	// Potions used up during the tick, untracked at the end of it
+	final ArrayList<Actor> dead = new ArrayList<Actor>();
+	// Set when a player was killed here, the next player leaving drops a potion
+	boolean kill = false;
+	// Potions to drop on the next tick of the floor
+	int potionsOwed = 0;
+	// The AI that decides first on the next tick, see ServerModel.runAIs
+	int aiCursor = 0;
+
+	Floor(int z)
+	{
+		this.z = z;
+	}
+
+	/**
+	 * A player taking the stairs, handed to the other floor once every floor is done
+	 */
+	static final class Transfer
+	{
+		final Player player;
+		final int toZ;
+
+		Transfer(Player player, int toZ)
+		{
+			this.player = player;
+			this.toZ = toZ;
+		}
+	}
+}
@@ -0,0 +1,323 @@
+package com.tsp.server.model;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.tsp.packets.Packet;
+
+/**
+ * Hosts any number of independent games, called rooms, in one process
+ * <p>Every room is a {@link ServerModel} with its own dungeon, actors, scores and tick.
+ * Clients pick a room by name in their handshake. A room is created when the first client
+ * asks for it and closed when the last one leaves, except for the default room which
+ * lives as long as the server.</p>
+ * <p>A new room is built on a thread of the manager, so neither the network threads nor
+ * clients joining other rooms are held up while its dungeon is made. Clients joining a
+ * room are told through a {@link JoinListener} once it is open.</p>
+ * <p>Rooms share one pool of tick threads and one pool for their floors, and the network
+ * servers are shared by all of them. Commands arriving over UDP are routed to the room of
+ * the player that sent them, player ids are unique across rooms.</p>
+ */
+public class InstanceManager
+{
+	private static final Logger LOGGER = LoggerFactory.getLogger(InstanceManager.class);
+	/**
+	 * The room of clients that do not ask for one
+	 */
+	public static final String DEFAULT_ROOM = "";
+
+	// Guarded by this
+	private final Map<String, Room> rooms = new HashMap<String, Room>();
+	private final ConcurrentHashMap<Integer, ServerModel> playerRooms = new ConcurrentHashMap<Integer, ServerModel>();
+	private final ScheduledExecutorService tickExecutor;
+	private final ForkJoinPool floorPool;
+	// Builds new rooms, one at a time
+	private final ExecutorService opener;
+	private final DungeonPool dungeons;
+	private final int ticksPerSecond;
+	private final int maxRooms;
+
+	/**
+	 * Creates a manager configured by the tsp.tickRate (30), tsp.maxRooms (256), tsp.tickThreads
+	 * (half the processors), tsp.floorThreads (the processors), tsp.dungeonPool (2) and
+	 * tsp.dungeonSeed (random) system properties
+	 */
+	public InstanceManager()
+	{
+		this(Integer.getInteger("tsp.tickRate", 30), Integer.getInteger("tsp.maxRooms", 256),
+		     Integer.getInteger("tsp.tickThreads", Math.max(1, Runtime.getRuntime().availableProcessors() / 2)),
+		     Integer.getInteger("tsp.floorThreads", Runtime.getRuntime().availableProcessors()),
+		     new DungeonPool(ServerModel.COLS, ServerModel.ROWS, ServerModel.FLOORS,
+		                     Integer.getInteger("tsp.dungeonPool", 2), Long.getLong("tsp.dungeonSeed")));
+	}
+
+	/**
+	 * Creates a manager, the default room is started right away
+	 * @param ticksPerSecond the simulation rate of every room
+	 * @param maxRooms the most rooms open at once
+	 * @param tickThreads the number of threads running the ticks of all rooms
+	 * @param floorThreads the number of threads simulating the floors of all rooms
+	 * @param dungeons where the dungeons of new rooms come from, shut down with the manager
+	 */
+	public InstanceManager(int ticksPerSecond, int maxRooms, int tickThreads, int floorThreads, DungeonPool dungeons)
+	{
+		this.ticksPerSecond = ticksPerSecond;
+		this.maxRooms = Math.max(1, maxRooms);
+		this.dungeons = dungeons;
+		tickExecutor = new ScheduledThreadPoolExecutor(Math.max(1, tickThreads));
+		floorPool = new ForkJoinPool(Math.max(1, floorThreads));
+		opener = Executors.newSingleThreadExecutor(new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable runnable)
+			{
+				Thread thread = new Thread(runnable, "Room opener");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		Room room = new Room(DEFAULT_ROOM);
+		room.model = open();
+		synchronized (this)
+		{
+			rooms.put(DEFAULT_ROOM, room);
+		}
+		LOGGER.info("Opened room '{}', {} open", DEFAULT_ROOM, 1);
+	}
+
+	private ServerModel open()
+	{
+		ServerModel model = new ServerModel(ticksPerSecond, floorPool, dungeons);
+		model.start(tickExecutor);
+		return model;
+	}
+
+	/**
+	 * Gets a room for a new client, opening it if needed, without waiting for it
+	 * <p>The listener is told right away on the calling thread if the room is open, and on
+	 * a thread of the manager once it is opened otherwise. Every room given to it must be
+	 * matched by a call to {@link #leave(ServerModel)} once the client is gone.</p>
+	 * @param name the name of the room, empty for the default room
+	 * @param listener told the room, or null if it does not exist and no more rooms can be
+	 * opened, or it could not be opened
+	 */
+	public void join(final String name, JoinListener listener)
+	{
+		ServerModel model = null;
+		final Room room;
+		boolean opening = false;
+		synchronized (this)
+		{
+			Room existing = rooms.get(name);
+			if (existing == null && rooms.size() < maxRooms)
+			{
+				existing = new Room(name);
+				rooms.put(name, existing);
+				opening = true;
+			}
+			room = existing;
+			if (room != null)
+			{
+				room.members++;
+				if (room.model != null)
+					model = room.model;
+				else
+					room.waiting.add(listener);
+			}
+		}
+		if (room == null || model != null)
+		{
+			listener.joined(model);
+			return;
+		}
+		if (!opening)
+			return;
+		try
+		{
+			opener.execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					opened(room, open(room));
+				}
+			});
+		}
+		catch (RejectedExecutionException e)
+		{
+			// Shut down
+			opened(room, null);
+		}
+	}
+
+	private ServerModel open(Room room)
+	{
+		try
+		{
+			return open();
+		}
+		catch (RuntimeException e)
+		{
+			LOGGER.error("Could not open room '" + room.name + "'", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Tells the clients waiting for a room that it is open
+	 * @param model the room, null if it could not be opened
+	 */
+	private void opened(Room room, ServerModel model)
+	{
+		List<JoinListener> waiting;
+		synchronized (this)
+		{
+			waiting = room.waiting;
+			room.waiting = null;
+			if (model == null || rooms.get(room.name) != room)
+			{
+				// Failed to open, or closed by quit() while it was opening
+				if (rooms.get(room.name) == room)
+					rooms.remove(room.name);
+				if (model != null)
+					model.stop();
+				model = null;
+			}
+			else
+			{
+				room.model = model;
+				LOGGER.info("Opened room '{}', {} open", room.name, rooms.size());
+			}
+		}
+		for (JoinListener listener : waiting)
+		{
+			listener.joined(model);
+		}
+	}
+
+	/**
+	 * Called when a client that joined a room is gone, the room is closed once it is empty
+	 * @param model the room the client joined
+	 */
+	public synchronized void leave(ServerModel model)
+	{
+		for (Room room : rooms.values())
+		{
+			if (room.model != model)
+				continue;
+			room.members--;
+			if (room.members <= 0 && !room.name.equals(DEFAULT_ROOM))
+			{
+				rooms.remove(room.name);
+				model.stop();
+				LOGGER.info("Closed room '{}', {} open", room.name, rooms.size());
+			}
+			return;
+		}
+	}
+
+	/**
+	 * Adds a player to a room
+	 * @param model the room, as given by {@link #join(String, JoinListener)}
+	 * @param name the name of the player
+	 * @return the id of the player, -1 if there was no room for it
+	 */
+	public int addPlayer(ServerModel model, String name)
+	{
+		int playerID = model.addPlayer(name);
+		if (playerID >= 0)
+			playerRooms.put(playerID, model);
+		return playerID;
+	}
+
+	public void removePlayer(ServerModel model, int playerID)
+	{
+		playerRooms.remove(playerID);
+		model.removePlayer(playerID);
+	}
+
+	/**
+	 * Queues a command for the room of the player that sent it
+	 * @param packet the command
+	 * @return false if the command was dropped, because the player is in no room or the
+	 * room has too many commands waiting
+	 */
+	public boolean putIncoming(Packet packet)
+	{
+		ServerModel model = playerRooms.get(ServerModel.issuer(packet));
+		return model != null && model.putIncoming(packet);
+	}
+
+	/**
+	 * Gets an open room
+	 * @param name the name of the room
+	 * @return the room, null if it is not open
+	 */
+	public synchronized ServerModel getRoom(String name)
+	{
+		Room room = rooms.get(name);
+		return room == null ? null : room.model;
+	}
+
+	public synchronized int getRoomCount()
+	{
+		return rooms.size();
+	}
+
+	/**
+	 * Stops every room and the threads they share
+	 */
+	public synchronized void quit()
+	{
+		for (Room room : rooms.values())
+		{
+			if (room.model != null)
+				room.model.stop();
+		}
+		rooms.clear();
+		opener.shutdown();
+		tickExecutor.shutdown();
+		floorPool.shutdown();
+		dungeons.shutdown();
+	}
+
+	/**
+	 * Told when a room asked for with {@link #join(String, JoinListener)} is open
+	 */
+	public interface JoinListener
+	{
+		/**
+		 * Called once, on the thread that opened the room
+		 * @param room the room, null if the client can not join
+		 */
+		void joined(ServerModel room);
+	}
+
+	private static final class Room
+	{
+		final String name;
+		// Null until it is open, guarded by the manager
+		ServerModel model;
+		// The clients waiting for it to open, null once it is
+		List<JoinListener> waiting = new ArrayList<JoinListener>();
+		int members = 0;
+
+		Room(String name)
+		{
+			this.name = name;
+		}
+	}
+}
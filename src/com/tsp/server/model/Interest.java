@@ -0,0 +1,92 @@
+package com.tsp.server.model;
+
+import java.util.BitSet;
+
+/**
+ * The part of the world one client is sent updates about
+ * <p>A player only hears about actors on its own floor within its sight, the fog of war
+ * radius plus a small margin so actors show up a tile or two before they come into view.
+ * A full feed, used by spectators, hears about everything.</p>
+ * <p>The interest also remembers which actors the client currently has in view and which
+ * it has been told about at all, so {@link WorldSnapshot#diff(WorldSnapshot, Interest)} can
+ * send an actor in full when it comes into view, hide it when it leaves and remove it only
+ * from clients that know it. It belongs to a single connection and is not thread safe.</p>
+ */
+public final class Interest
+{
+	// Extra tiles around the fog of war radius
+	private static final int MARGIN = 2;
+
+	private final int ownerID;
+	final int radiusX;
+	final int radiusY;
+	private final boolean fullFeed;
+	final BitSet inView = new BitSet();
+	final BitSet known = new BitSet();
+	int x;
+	int y;
+	int z = -1;
+	// The last input of the owner acknowledged to the client
+	int acked;
+
+	private Interest(int ownerID, int radiusX, int radiusY, boolean fullFeed)
+	{
+		this.ownerID = ownerID;
+		this.radiusX = radiusX;
+		this.radiusY = radiusY;
+		this.fullFeed = fullFeed;
+	}
+
+	/**
+	 * Creates the interest of a player
+	 * @param playerID the id of the player, the center of the area
+	 * @param fogWidth the fog of war radius along x
+	 * @param fogHeight the fog of war radius along y
+	 * @return the interest
+	 */
+	public static Interest around(int playerID, int fogWidth, int fogHeight)
+	{
+		return new Interest(playerID, fogWidth + MARGIN, fogHeight + MARGIN, false);
+	}
+
+	/**
+	 * Creates an interest in the whole world, for spectators
+	 * @return the interest
+	 */
+	public static Interest everything()
+	{
+		return new Interest(-1, 0, 0, true);
+	}
+
+	public int getOwnerID()
+	{
+		return ownerID;
+	}
+
+	public boolean isFullFeed()
+	{
+		return fullFeed;
+	}
+
+	/**
+	 * Moves the center of the area, called once per snapshot with the owners position
+	 */
+	void center(int x, int y, int z)
+	{
+		this.x = x;
+		this.y = y;
+		this.z = z;
+	}
+
+	/**
+	 * Checks if an actor at a position is of interest
+	 * @param actorID the id of the actor
+	 * @return true when the client should be sent the actor
+	 */
+	boolean contains(int actorID, int ax, int ay, int az)
+	{
+		if (fullFeed || actorID == ownerID)
+			return true;
+		return az == z && Math.abs(ax - x) <= radiusX && Math.abs(ay - y) <= radiusY;
+	}
+}
@@ -1,22 +1,45 @@
 package com.tsp.server.model;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Queue;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ArrayBlockingQueue;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.googlecode.blacken.core.Random;
 import com.tsp.game.actors.Actor.ActorType;
 import com.tsp.game.actors.AI;
+import com.tsp.game.actors.ChaseAI;
+import com.tsp.game.actors.FleeAI;
+import com.tsp.game.actors.WanderAI;
+import com.tsp.game.actors.WorldView;
 import com.tsp.game.actors.Actor;
 import com.tsp.game.actors.Player;
+import com.tsp.game.actors.SpatialIndex;
 import com.tsp.game.map.Dungeon;
+import com.tsp.game.map.DungeonCodec;
+import com.tsp.game.map.ExploredMap;
+import com.tsp.game.map.FieldOfView;
+import com.tsp.game.map.FreeTileIndex;
+import com.tsp.game.map.PathFinder;
 import com.tsp.game.map.Point3D;
 import com.tsp.packets.ActorPacket;
 import com.tsp.packets.ActorUpdate;
@@ -38,41 +61,187 @@ public class ServerModel implements Runnable
 	private static final Logger LOGGER = LoggerFactory
 			.getLogger(ServerModel.class);
 	// Dungeon properties
-	private final int ROWS = 24;
-	private final int COLS = 80;
-	private final int FLOORS = 4;
-	HashMap<Integer, AI> ais;
+	static final int ROWS = 24;
+	static final int COLS = 80;
+	static final int FLOORS = 4;
+	// Commands waiting for the next tick, anything past this is dropped
+	private static final int MAX_INCOMING = 8192;
+	// Players whose explored map is kept after they leave, the longest gone are forgotten first
+	private static final int MAX_EXPLORED = 1024;
+	// AIs of a floor decide in batches of this many, the batches run in parallel
+	private static final int AI_BATCH = 64;
+	// How far from their target flow fields reach
+	private static final int FIELD_RADIUS = 24;
+	// The most steps away a client may move its player to with an update
+	private static final int MAX_UPDATE_STEPS = 4;
+	ConcurrentHashMap<Integer, AI> ais;
 	Dungeon dungeon;
+	// Every floor is simulated on its own, see Floor
+	Floor[] floors;
 	Queue<Packet> incomingPackets;
-	HashMap<Integer, Actor> otherActors;
+	private final ArrayList<Packet> tickPackets = new ArrayList<Packet>();
+	ConcurrentHashMap<Integer, Actor> otherActors;
 	Queue<Packet> outgoingPackets;
+	private final ArrayList<Packet> tickOutgoing = new ArrayList<Packet>();
 	ConcurrentHashMap<Integer, Player> players;
 	ConcurrentHashMap<String, KDTuple> scores;
-	boolean running = true;
-	boolean kill = false;
+	// What every player sees, updated on the tick of its floor
+	ConcurrentHashMap<Integer, FieldOfView> views;
+	// What every player in the game explored, the same maps as in exploredByName
+	ConcurrentHashMap<Integer, ExploredMap> explored;
+	// What every player explored by name, kept after it leaves so a reconnect gets it back, guarded by itself
+	private final Map<String, ExploredMap> exploredByName = new LinkedHashMap<String, ExploredMap>(16, 0.75f, true)
+	{
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, ExploredMap> eldest)
+		{
+			return size() > MAX_EXPLORED;
+		}
+	};
+	// Every actor of the three maps above, and where they stand
+	ConcurrentHashMap<Integer, Actor> actors;
+	private final Collection<Actor> actorsView;
+	SpatialIndex actorIndex;
+	// The open floor nobody stands on, kept up to date by actorIndex
+	FreeTileIndex freeTiles;
+	// Ways through the dungeon, for the AIs and to check moves
+	PathFinder paths;
+	// What the AIs see, over the dungeon and actorIndex
+	WorldView world;
+	// Time the AIs of a floor may take per tick, the rest wait for the next tick
+	private final long aiBudget;
+	// The dungeon as sent to joining clients, encoded once per dungeon
+	private ByteBuffer encodedDungeon;
+	private final TickScheduler scheduler;
+	// Simulates the floors of a tick in parallel
+	private final ForkJoinPool floorPool;
+	private final boolean ownsFloorPool;
+	private final ArrayList<Callable<Void>> floorTasks = new ArrayList<Callable<Void>>();
+	// Where new dungeons come from
+	private final DungeonPool dungeons;
+
+	// Orders the commands of one tick, see processPackets
+	private static final Comparator<Packet> COMMAND_ORDER = new Comparator<Packet>()
+	{
+		@Override
+		public int compare(Packet a, Packet b)
+		{
+			int byIssuer = Integer.compare(issuer(a), issuer(b));
+			if (byIssuer != 0)
+				return byIssuer;
+			return Integer.compare(a.getPacketID(), b.getPacketID());
+		}
+	};
 
+	/**
+	 * Creates a model ticking at the rate given by the tsp.tickRate system property, 30 by default
+	 */
 	public ServerModel()
+	{
+		this(Integer.getInteger("tsp.tickRate", 30));
+	}
+
+	/**
+	 * Creates a model simulating its floors on as many threads as the tsp.floorThreads system
+	 * property, the number of processors by default
+	 * @param ticksPerSecond the simulation rate
+	 */
+	public ServerModel(int ticksPerSecond)
+	{
+		this(ticksPerSecond, new ForkJoinPool(Integer.getInteger("tsp.floorThreads",
+				Runtime.getRuntime().availableProcessors())), true, unpooled());
+	}
+
+	/**
+	 * Creates a model generating its own dungeon
+	 * @param ticksPerSecond the simulation rate
+	 * @param floorPool the pool the floors are simulated on, it can be shared by several models
+	 */
+	public ServerModel(int ticksPerSecond, ForkJoinPool floorPool)
+	{
+		this(ticksPerSecond, floorPool, false, unpooled());
+	}
+
+	/**
+	 * Creates a model
+	 * @param ticksPerSecond the simulation rate
+	 * @param floorPool the pool the floors are simulated on, it can be shared by several models
+	 * @param dungeons where the dungeon of the model comes from, it can be shared by several models
+	 */
+	public ServerModel(int ticksPerSecond, ForkJoinPool floorPool, DungeonPool dungeons)
+	{
+		this(ticksPerSecond, floorPool, false, dungeons);
+	}
+
+	private ServerModel(int ticksPerSecond, ForkJoinPool floorPool, boolean ownsFloorPool, DungeonPool dungeons)
 	{
 		LOGGER.info("New Server Model");
+		scheduler = new TickScheduler(ticksPerSecond);
+		this.floorPool = floorPool;
+		this.ownsFloorPool = ownsFloorPool;
+		this.dungeons = dungeons;
+		// A quarter of the tick by default
+		aiBudget = TimeUnit.MICROSECONDS.toNanos(Long.getLong("tsp.aiBudgetMicros", 250000L / Math.max(1, ticksPerSecond)));
 		players = new ConcurrentHashMap<Integer, Player>();
 		scores = new ConcurrentHashMap<String, KDTuple>();
-		ais = new HashMap<Integer, AI>();
-		otherActors = new HashMap<Integer, Actor>();
-		incomingPackets = new LinkedList<Packet>();
-		outgoingPackets = new LinkedList<Packet>();
+		views = new ConcurrentHashMap<Integer, FieldOfView>();
+		explored = new ConcurrentHashMap<Integer, ExploredMap>();
+		ais = new ConcurrentHashMap<Integer, AI>();
+		otherActors = new ConcurrentHashMap<Integer, Actor>();
+		actors = new ConcurrentHashMap<Integer, Actor>();
+		actorsView = Collections.unmodifiableCollection(actors.values());
+		incomingPackets = new ArrayBlockingQueue<Packet>(MAX_INCOMING);
+		outgoingPackets = new ConcurrentLinkedQueue<Packet>();
 		generateDungeon();
-		dungeon.revealAll();
 		generatePotions();
+		generateMonsters(Integer.getInteger("tsp.monsters", 6));
+	}
+
+	/**
+	 * A pool that keeps nothing ahead, seeded by the tsp.dungeonSeed system property if set
+	 */
+	private static DungeonPool unpooled()
+	{
+		return new DungeonPool(COLS, ROWS, FLOORS, 0, Long.getLong("tsp.dungeonSeed"));
 	}
 
 	public void generateDungeon()
 	{
 		LOGGER.info("{}: {}: Model: Generating new dungeon", Thread
 				.currentThread().getName(), Thread.currentThread().getId());
-		dungeon = new Dungeon();
-		LOGGER.info("Dungeon[{}][{}][{}]", dungeon.getDungeon().length,
-				dungeon.getDungeon()[0].length,
-				dungeon.getDungeon()[0][0].length);
+		dungeon = dungeons.take();
+		LOGGER.info("Using dungeon of seed {}", dungeon.getSeed());
+		freeTiles = new FreeTileIndex(dungeon);
+		actorIndex = new SpatialIndex(dungeon.getColumns(), dungeon.getRows(), dungeon.getFloors(), freeTiles);
+		paths = new PathFinder(dungeon, FIELD_RADIUS);
+		world = new WorldView(dungeon, actorIndex, paths);
+		floors = new Floor[dungeon.getFloors()];
+		floorTasks.clear();
+		for (int z = 0; z < floors.length; z++)
+		{
+			final Floor floor = floors[z] = new Floor(z);
+			floorTasks.add(new Callable<Void>()
+			{
+				@Override
+				public Void call()
+				{
+					floor.lock.lock();
+					try
+					{
+						simulate(floor);
+					}
+					finally
+					{
+						floor.lock.unlock();
+					}
+					return null;
+				}
+			});
+		}
+		encodedDungeon = DungeonCodec.encode(dungeon).asReadOnlyBuffer();
+		LOGGER.info("Dungeon[{}][{}][{}]", dungeon.getFloors(),
+				dungeon.getColumns(),
+				dungeon.getRows());
 
 	}
 
@@ -87,27 +256,42 @@ public class ServerModel implements Runnable
 	}
 
 	/**
-	 * Randomly place a potion of the given floor
+	 * Called at start of game to put monsters on every floor, a mix of every kind
+	 * @param perFloor the number of monsters on each floor
+	 */
+	public void generateMonsters(int perFloor)
+	{
+		for (int z = 0; z < FLOORS; z++)
+		{
+			for (int i = 0; i < perFloor; i++)
+			{
+				Point3D spot = freeTiles.random(z);
+				if (spot == null)
+					break;
+				AI ai = i % 3 == 0 ? new ChaseAI() : i % 3 == 1 ? new WanderAI() : new FleeAI();
+				ai.setPos(spot);
+				addAI(ai);
+			}
+		}
+	}
+
+	/**
+	 * Randomly place a potion of the given floor, the caller must hold the lock of the floor
+	 * unless the game has not started yet
+	 * @return the id of the potion, -1 if the floor has no free tile left
 	 */
 	public int addPotion(int floor) {
+		Point3D spot = freeTiles.random(floor);
+		if (spot == null)
+			return -1;
 		Actor potion = new Actor();
 		potion.setColor(16711680);
 		potion.setHealth(1);
 		potion.setSymbol("\u2764");
 		potion.setType(ActorType.ACTOR_POTION);
-
-		Random r = new Random();
-		boolean placedPotion = false;
-
-		while (!placedPotion) {
-			int x = r.nextInt(80);
-			int y = r.nextInt(24);
-			if (dungeon.isEmptyFloor(x, y, floor)) {
-				potion.setPos(new Point3D(x, y, floor));
-				otherActors.put(potion.getId(), potion);
-				placedPotion = true;
-			}
-		}
+		potion.setPos(spot);
+		otherActors.put(potion.getId(), potion);
+		track(potion);
 		return potion.getId();
 	}
 
@@ -115,33 +299,31 @@ public class ServerModel implements Runnable
 	{
 		System.out.println("Adding Player: " + playName);
 		Player player = new Player(playName, COLS, ROWS, FLOORS);
-		Point3D point3D = player.getPos();
+		// Start on the random floor the player got, or the next one with room left
 		boolean spotFound = false;
-		for (int time = 0; time < 30; time++)
-		{
-			if (dungeon.walkableTile(player.getPos()))
-			{
-				spotFound = true;
-				break;
-			}
-			player.newPosition(COLS, ROWS, FLOORS);
-		}
-
-		if (!spotFound)
+		for (int i = 0; i < floors.length && !spotFound; i++)
 		{
+			Floor floor = floors[(player.getZ() + i) % floors.length];
+			floor.lock.lock();
 			try
 			{
-				player.setPos(dungeon.findFirstWalkablePoint(this.getActors()));
+				Point3D spot = freeTiles.random(floor.z);
+				if (spot != null)
+				{
+					player.setPos(spot);
+					join(floor, player);
+					spotFound = true;
+				}
 			}
-			catch (Exception e)
+			finally
 			{
-				return -1;
+				floor.lock.unlock();
 			}
 		}
-		players.put(player.getId(), player);
+		if (!spotFound)
+			return -1;
 
-		if (!scores.containsKey(player.getName()))
-			scores.put(player.getName(), new KDTuple());
+		scores.putIfAbsent(player.getName(), new KDTuple());
 
 		// Send out the scores again so everyone is sync'd up
 		for (String name : scores.keySet()) {
@@ -150,13 +332,57 @@ public class ServerModel implements Runnable
 		return player.getId();
 	}
 
-	public ArrayList<Actor> getActors()
+	private void join(Floor floor, Player player)
+	{
+		views.put(player.getId(), new FieldOfView(dungeon));
+		explored.put(player.getId(), exploredBy(player.getName()));
+		players.put(player.getId(), player);
+		track(player);
+		floor.players.add(player);
+	}
+
+	private ExploredMap exploredBy(String name)
+	{
+		synchronized (exploredByName)
+		{
+			ExploredMap map = exploredByName.get(name);
+			if (map == null)
+			{
+				map = new ExploredMap(dungeon.getColumns(), dungeon.getRows(), dungeon.getFloors());
+				exploredByName.put(name, map);
+			}
+			return map;
+		}
+	}
+
+	/**
+	 * Gets every actor in the game
+	 * @return a read only live view of the actors, nothing is copied
+	 */
+	public Collection<Actor> getActors()
+	{
+		return actorsView;
+	}
+
+	private void track(Actor actor)
+	{
+		actors.put(actor.getId(), actor);
+		actorIndex.add(actor);
+	}
+
+	private void untrack(Actor actor)
 	{
-		LOGGER.info("Getting Actors");
-		ArrayList<Actor> actors = new ArrayList<Actor>(otherActors.values());
-		actors.addAll(players.values());
-		actors.addAll(ais.values());
-		return actors;
+		actors.remove(actor.getId());
+		actorIndex.remove(actor);
+	}
+
+	/**
+	 * Gets the index of where every actor stands
+	 * @return the spatial index
+	 */
+	public SpatialIndex getActorIndex()
+	{
+		return actorIndex;
 	}
 
 	public String[][][] getDungeonArray()
@@ -166,6 +392,15 @@ public class ServerModel implements Runnable
 		return dungeon.getDungeon();
 	}
 
+	/**
+	 * Gets the dungeon encoded by {@link DungeonCodec}, shared by every joining client
+	 * @return a read only buffer positioned at the start of the encoded dungeon
+	 */
+	public ByteBuffer getEncodedDungeon()
+	{
+		return encodedDungeon.duplicate();
+	}
+
 	public Dungeon getDungeon()
 	{
 		LOGGER.info("{}: {}: Model: Getting Dungeon Object", Thread
@@ -188,6 +423,26 @@ public class ServerModel implements Runnable
 		return dungeon.getRows();
 	}
 
+	/**
+	 * Gets what a player saw at the end of the last tick, only safe to read on the tick of its floor
+	 * @param playerID the id of the player
+	 * @return the field of view, null if the player is not in the game
+	 */
+	public FieldOfView getFieldOfView(int playerID)
+	{
+		return views.get(playerID);
+	}
+
+	/**
+	 * Gets every tile a player has seen, including before it last reconnected
+	 * @param playerID the id of the player
+	 * @return the explored map, null if the player is not in the game
+	 */
+	public ExploredMap getExplored(int playerID)
+	{
+		return explored.get(playerID);
+	}
+
 	public Player getPlayer(Integer playerID)
 	{
 		LOGGER.info("get player id: {}", playerID);
@@ -197,83 +452,305 @@ public class ServerModel implements Runnable
 	@Override
 	public void run()
 	{
-		while (running)
+		scheduler.run(tickBody());
+	}
+
+	/**
+	 * Starts ticking on a shared executor instead of a thread of its own
+	 * @param executor the executor running the ticks
+	 */
+	public void start(ScheduledExecutorService executor)
+	{
+		scheduler.start(executor, tickBody());
+	}
+
+	private Runnable tickBody()
+	{
+		return new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				tick();
+			}
+		};
+	}
+
+	/**
+	 * One step of the simulation, commands from the clients are only applied here
+	 * <p>The floors are simulated in parallel, each under its own lock, so a tick takes as
+	 * long as the busiest floor. Players taking the stairs arrive on their new floor once
+	 * every floor is done.</p>
+	 */
+	private void tick()
+	{
+		processPackets();
+		simulateFloors();
+		handOff();
+		for (Floor floor : floors)
+		{
+			outgoingPackets.addAll(floor.outgoing);
+			floor.outgoing.clear();
+		}
+		sendPackets();
+		TCPServer.publish(this, WorldSnapshot.capture((int) scheduler.getTick(), actorsView, dungeon.getColumns(),
+		                                                dungeon.getRows()));
+	}
+
+	public TickScheduler getScheduler()
+	{
+		return scheduler;
+	}
+
+	private void simulateFloors()
+	{
+		List<Future<Void>> results = floorPool.invokeAll(floorTasks);
+		for (Future<Void> result : results)
 		{
-			// processPackets();
-			processAttacks();
-			processAI();
-			sendPackets();
 			try
 			{
-				Thread.sleep(5);
+				result.get();
 			}
 			catch (InterruptedException e)
 			{
-				e.printStackTrace();
+				Thread.currentThread().interrupt();
+			}
+			catch (ExecutionException e)
+			{
+				LOGGER.error("Floor simulation failed", e.getCause());
 			}
 		}
 	}
 
-	private void processAttacks()
+	/**
+	 * Applies the commands of the floor, runs its AIs, resolves the attacks on it, drops
+	 * the potions it owes and updates what its players see. The caller holds the floor lock.
+	 */
+	private void simulate(Floor floor)
 	{
-		for (Player player : players.values())
+		for (Packet command : floor.commands)
 		{
+			processPacket(command);
+		}
+		floor.commands.clear();
+		runAIs(floor);
+		for (int i = 0; i < floor.players.size(); i++)
+		{
+			Player player = floor.players.get(i);
 			if (player.isAttacking())
 			{
-				processAttack(player);
+				processAttack(floor, player);
+			}
+		}
+		for (int i = floor.ais.size() - 1; i >= 0; i--)
+		{
+			AI ai = floor.ais.get(i);
+			if (ai.getHealth() <= 0)
+			{
+				floor.ais.remove(i);
+				ais.remove(ai.getId());
+				untrack(ai);
+			}
+		}
+		// Dead potions free their tile, like dead AIs
+		for (int i = 0; i < floor.dead.size(); i++)
+		{
+			Actor actor = floor.dead.get(i);
+			otherActors.remove(actor.getId());
+			untrack(actor);
+		}
+		floor.dead.clear();
+		for (; floor.potionsOwed > 0; floor.potionsOwed--)
+		{
+			addPotion(floor.z);
+		}
+		for (int i = 0; i < floor.players.size(); i++)
+		{
+			Player player = floor.players.get(i);
+			FieldOfView view = views.get(player.getId());
+			if (view.update(player.getX(), player.getY(), player.getZ()))
+				explored.get(player.getId()).add(view);
+		}
+	}
+
+	/**
+	 * Lets the AIs of a floor take their turns
+	 * <p>The AIs decide in parallel batches while nothing moves, then the decisions are carried
+	 * out one AI at a time in the order of the floor. Deciding stops once the budget of the
+	 * tick is used up, the AIs that did not get to decide go first on the next tick.</p>
+	 */
+	private void runAIs(final Floor floor)
+	{
+		final int count = floor.ais.size();
+		if (count == 0)
+			return;
+		final long deadline = System.nanoTime() + aiBudget;
+		int batches = (count + AI_BATCH - 1) / AI_BATCH;
+		// The first AI of every batch that ran out of time, or the end of the batch
+		final int[] stopped = new int[batches];
+		if (batches == 1)
+		{
+			stopped[0] = decide(floor, 0, count, deadline);
+		}
+		else
+		{
+			ArrayList<RecursiveAction> tasks = new ArrayList<RecursiveAction>(batches);
+			for (int b = 0; b < batches; b++)
+			{
+				final int batch = b;
+				tasks.add(new RecursiveAction()
+				{
+					@Override
+					protected void compute()
+					{
+						int from = batch * AI_BATCH;
+						stopped[batch] = decide(floor, from, Math.min(count, from + AI_BATCH), deadline);
+					}
+				});
+			}
+			ForkJoinTask.invokeAll(tasks);
+		}
+		for (int b = 0; b < batches; b++)
+		{
+			if (stopped[b] < Math.min(count, (b + 1) * AI_BATCH))
+			{
+				floor.aiCursor = (floor.aiCursor + stopped[b]) % count;
+				break;
+			}
+		}
+		for (int i = 0; i < count; i++)
+		{
+			AI ai = floor.ais.get(i);
+			if (ai.getStepX() != 0 || ai.getStepY() != 0)
+				carryOut(floor, ai);
+			ai.rest();
+		}
+	}
+
+	/**
+	 * Has the AIs of one batch decide, counted from the cursor of the floor
+	 * @return the first AI that ran out of time, to if every AI got to decide
+	 */
+	private int decide(Floor floor, int from, int to, long deadline)
+	{
+		int count = floor.ais.size();
+		for (int k = from; k < to; k++)
+		{
+			if (System.nanoTime() > deadline)
+				return k;
+			AI ai = floor.ais.get((floor.aiCursor + k) % count);
+			if (ai.getHealth() > 0 && ai.ready())
+				ai.turn(world);
+		}
+		return to;
+	}
+
+	private void carryOut(Floor floor, AI ai)
+	{
+		int x = ai.getX() + ai.getStepX();
+		int y = ai.getY() + ai.getStepY();
+		int z = ai.getZ();
+		if (!ai.isStriking())
+		{
+			// Someone may have stepped there since the AI looked
+			if (world.isFree(x, y, z))
+				ai.move(ai.getStepX(), ai.getStepY());
+			return;
+		}
+		for (Actor a = actorIndex.actorAt(x, y, z); a != null; a = a.getNextInCell())
+		{
+			if (a.getType() != ActorType.ACTOR_PLAYER || a.getHealth() <= 0)
+				continue;
+			ai.hit(a);
+			if (a.getHealth() <= 0)
+			{
+				floor.kill = true;
+				floor.outgoing.add(new MessagePacket(ai.getName() + " k " + a.getName()));
+				KDTuple defenderScore = scores.get(a.getName());
+				if (defenderScore != null)
+				{
+					defenderScore.incrementDeaths();
+					floor.outgoing.add(new ScorePacket(a.getName(), defenderScore));
+				}
 			}
+			return;
 		}
 	}
 
-	private synchronized void processAttack(Player player)
+	/**
+	 * Moves the players that took the stairs this tick to their new floor
+	 */
+	private void handOff()
 	{
-		attemptAttack(player.getId(),
-				new Point3D((int) player.getDelta().getX(), (int) player.getDelta().getY()));
+		for (Floor from : floors)
+		{
+			for (Floor.Transfer transfer : from.leaving)
+			{
+				if (transfer.toZ < 0 || transfer.toZ >= floors.length || transfer.toZ == from.z)
+					continue;
+				Floor to = floors[transfer.toZ];
+				Floor first = from.z < to.z ? from : to;
+				Floor second = first == from ? to : from;
+				first.lock.lock();
+				second.lock.lock();
+				try
+				{
+					Player player = transfer.player;
+					// The player may have left the game since
+					if (players.get(player.getId()) != player || player.getZ() != from.z)
+						continue;
+					from.players.remove(player);
+					player.setZ(to.z);
+					to.players.add(player);
+				}
+				finally
+				{
+					second.lock.unlock();
+					first.lock.unlock();
+				}
+			}
+			from.leaving.clear();
+		}
+	}
+
+	private void processAttack(Floor floor, Player player)
+	{
+		attemptAttack(player.getId(), player.getDelta().x, player.getDelta().y);
 
 
 		//Player attacker = getPlayer(attackPacket.getAttacker());
 		if (player.isAttacking())
 		{
-			ArrayList<Actor> actors = getActors();
-			ActorUpdate attackUpdate = new ActorUpdate(player.getId());
-
-			attackUpdate.insertValue("attacking", true);
-			attackUpdate.insertValue("deltaX", (int) player.getDelta()
-					.getX());
-			attackUpdate.insertValue("deltaY", (int) player.getDelta()
-					.getY());
-			outgoingPackets.add(attackUpdate);
-
-			Point3D attackDest = player.getAttackPos();
-			for (Actor a : actors)
+			int attackX = player.getAttackX();
+			int attackY = player.getAttackY();
+			int attackZ = player.getZ();
+			for (Actor a = actorIndex.actorAt(attackX, attackY, attackZ); a != null; a = a.getNextInCell())
 			{
 				if (a.getId() != player.getId())
 				{
-					if (a.checkHit(attackDest))
+					if (a.checkHit(attackX, attackY, attackZ))
 					{
 						// If player attacked a health potion
 						if (a.getType() == ActorType.ACTOR_POTION) {
 							player.hit(a);
 							player.heal(2);
-							ActorUpdate healUpdate = new ActorUpdate(player.getId());
-							healUpdate.insertValue("health", player.getHealth());
-							outgoingPackets.add(healUpdate);
 						}
 						player.hit(a);
-						ActorUpdate aUpdate = new ActorUpdate(a.getId());
 						if (a.getHealth() <= 0)
 						{
-							if (a.getType() == ActorType.ACTOR_POTION) {
-								aUpdate.insertValue("remove", "remove");
+							if (a.getType() == ActorType.ACTOR_AI) {
+								floor.outgoing.add(new MessagePacket(player.getName() + " k " + a.getName()));
+							}
+							else if (a.getType() == ActorType.ACTOR_POTION) {
+								floor.dead.add(a);
 							}
 							else {
-								kill = true;
-								aUpdate.insertValue("remove", "remove");
+								floor.kill = true;
 								// Put in an outgoing packet for all the clients telling them
 								// that a player was killed by another player
 								String killshot = player.getName() + " k " + a.getName();
 								MessagePacket m = new MessagePacket(killshot);
-								outgoingPackets.add(m);
+								floor.outgoing.add(m);
 
 								// Also send out two score packets, one for each player
 								// that was involved in the exchange
@@ -282,170 +759,183 @@ public class ServerModel implements Runnable
 								KDTuple defenderScore = scores.get(a.getName());
 								defenderScore.incrementDeaths();
 
-								outgoingPackets.add(new ScorePacket(player.getName(), attackerScore));
-								outgoingPackets.add(new ScorePacket(a.getName(), defenderScore));
+								floor.outgoing.add(new ScorePacket(player.getName(), attackerScore));
+								floor.outgoing.add(new ScorePacket(a.getName(), defenderScore));
 							}
 						}
-						else
-							aUpdate.insertValue("health", a.getHealth());
-						outgoingPackets.add(aUpdate);
 					}
 				}
 			}
 		}
-		else if (!player.isAttacking())
-		{
-			ActorUpdate attackUpdate = new ActorUpdate(player.getId());
-			attackUpdate.insertValue("attacking", false);
-			attackUpdate.insertValue("deltaX", (int) 0);
-			attackUpdate.insertValue("deltaY", (int) 0);
-			outgoingPackets.add(attackUpdate);
-		}
 	}
 
 
-	private synchronized void sendPackets()
+	private void sendPackets()
 	{
-		// LOGGER.info("{}: {}: Model: Processing Outgoing Packets",
-		// Thread.currentThread().getName(),Thread.currentThread().getId());
-		while (!outgoingPackets.isEmpty())
+		Packet packet;
+		while ((packet = outgoingPackets.poll()) != null)
 		{
-			TCPServer.addOutGoingPacket(outgoingPackets.poll());
+			tickOutgoing.add(packet);
+		}
+		if (!tickOutgoing.isEmpty())
+		{
+			TCPServer.addOutGoingPackets(this, tickOutgoing);
+			tickOutgoing.clear();
 		}
 	}
 
-	private synchronized void processAI()
+	/**
+	 * Adds an AI to the game, it takes its turns on the floor it stands on
+	 * @param ai the AI
+	 */
+	public void addAI(AI ai)
 	{
-		// LOGGER.info("{}: {}: Model: AI turns",
-		// Thread.currentThread().getName(),Thread.currentThread().getId());
-		for (AI ai : ais.values())
+		Floor floor = floors[ai.getZ()];
+		floor.lock.lock();
+		try
+		{
+			ais.put(ai.getId(), ai);
+			track(ai);
+			floor.ais.add(ai);
+		}
+		finally
 		{
-			ai.turn(dungeon, getActors());
+			floor.lock.unlock();
 		}
 	}
 
-	public void processPacket(Packet packet)
+	private void processPacket(Packet packet)
 	{
+		LOGGER.debug("{}", packet);
+		// Inputs overtaken by a later one from the same client are stale, the client
+		// already replayed its prediction without them
+		int sequence = sequence(packet);
+		if (sequence != 0)
+		{
+			Player player = players.get(issuer(packet));
+			if (player == null || !player.acceptInput(sequence))
+				return;
+		}
 		switch (packet.getPacketType())
 		{
 		case MOVEMENTPACKET:
 			MovementPacket movementPacket = (MovementPacket) packet;
 			processMovement(movementPacket);
-			System.out.println(packet.toString());
 			break;
 		case ACTOR_PACKET:
 			ActorPacket actorPacket = (ActorPacket) packet;
 			processActor(actorPacket);
-			System.out.println(packet.toString());
 			break;
 		case UPDATE_PACKET:
 			ActorUpdate actorUpdate = (ActorUpdate) packet;
 			processUpdate(actorUpdate);
-			System.out.println(packet.toString());
 			break;
 		case ATTACK_PACKET:
 			AttackPacket attackPacket = (AttackPacket) packet;
 			processAttack(attackPacket);
-			System.out.println(packet.toString());
 			break;
 		default:
 			break;
 		}
 	}
 
+	/**
+	 * Drains the commands received since the last tick and hands them to the floor the
+	 * player that sent them stands on, ordered by player and then by packet id, so the
+	 * outcome of a tick does not depend on which network thread delivered a packet first.
+	 * Commands from players that are not in the game are dropped.
+	 */
 	private void processPackets()
 	{
-		synchronized (this)
+		Packet packet;
+		while ((packet = incomingPackets.poll()) != null)
 		{
-			while (!incomingPackets.isEmpty())
-			{
-				Packet packet = incomingPackets.poll();
-				switch (packet.getPacketType())
-				{
-				case MOVEMENTPACKET:
-					MovementPacket movementPacket = (MovementPacket) packet;
-					processMovement(movementPacket);
-					System.out.println(packet.toString());
-					break;
-				case ACTOR_PACKET:
-					ActorPacket actorPacket = (ActorPacket) packet;
-					processActor(actorPacket);
-					System.out.println(packet.toString());
-					break;
-				case UPDATE_PACKET:
-					ActorUpdate actorUpdate = (ActorUpdate) packet;
-					processUpdate(actorUpdate);
-					System.out.println(packet.toString());
-					break;
-				case ATTACK_PACKET:
-					AttackPacket attackPacket = (AttackPacket) packet;
-					processAttack(attackPacket);
-					System.out.println(packet.toString());
-					break;
-				default:
-					break;
-				}
-			}
+			tickPackets.add(packet);
+		}
+		Collections.sort(tickPackets, COMMAND_ORDER);
+		for (Packet command : tickPackets)
+		{
+			Player player = players.get(issuer(command));
+			if (player != null)
+				floors[player.getZ()].commands.add(command);
+		}
+		tickPackets.clear();
+	}
+
+	/**
+	 * Gets the player a command comes from
+	 * @param packet the command
+	 * @return the id of the player, -1 if the packet is not a command
+	 */
+	static int issuer(Packet packet)
+	{
+		switch (packet.getPacketType())
+		{
+		case MOVEMENTPACKET:
+			return ((MovementPacket) packet).getM_playerID();
+		case ATTACK_PACKET:
+			return ((AttackPacket) packet).getAttacker();
+		case UPDATE_PACKET:
+			return ((ActorUpdate) packet).getActorID();
+		default:
+			return -1;
+		}
+	}
+
+	/**
+	 * Gets the input sequence number of a command
+	 * @return the number, 0 if the command is not numbered
+	 */
+	static int sequence(Packet packet)
+	{
+		switch (packet.getPacketType())
+		{
+		case MOVEMENTPACKET:
+			return ((MovementPacket) packet).getSequence();
+		case ATTACK_PACKET:
+			return ((AttackPacket) packet).getSequence();
+		default:
+			return 0;
 		}
 	}
 
-	private synchronized void processAttack(AttackPacket attackPacket)
+	private void processAttack(AttackPacket attackPacket)
 	{
 		LOGGER.info("Processing attack from playerID: {}",
 				attackPacket.getAttacker());
 		Player attacker = getPlayer(attackPacket.getAttacker());
-		attemptAttack(attackPacket.getAttacker(),
-				new Point3D(attackPacket.getDeltaX(), attackPacket.getDeltaY()));
+		attemptAttack(attackPacket.getAttacker(), attackPacket.getDeltaX(), attackPacket.getDeltaY());
 		{
 			if (attacker.isAttacking())
 			{
-				ArrayList<Actor> actors = getActors();
-				ActorUpdate attackUpdate = new ActorUpdate(attacker.getId());
-
-				attackUpdate.insertValue("attacking", true);
-				attackUpdate.insertValue("deltaX", (int) attacker.getDelta()
-						.getX());
-				attackUpdate.insertValue("deltaY", (int) attacker.getDelta()
-						.getY());
-				outgoingPackets.add(attackUpdate);
-
-				Point3D attackDest = attacker.getAttackPos();
-				for (Actor a : actors)
+				int attackX = attacker.getAttackX();
+				int attackY = attacker.getAttackY();
+				int attackZ = attacker.getZ();
+				for (Actor a = actorIndex.actorAt(attackX, attackY, attackZ); a != null; a = a.getNextInCell())
 				{
 					if (a.getId() != attackPacket.getAttacker())
 					{
-						if (a.checkHit(attackDest))
+						if (a.checkHit(attackX, attackY, attackZ))
 						{
 							attacker.hit(a);
-							ActorUpdate aUpdate = new ActorUpdate(a.getId());
 							if (a.getHealth() <= 0)
 							{
-								aUpdate.insertValue("remove", "remove");
 								// Put in an outgoing packet for all the clients telling them
 								// that a player was killed by another player
 								String killshot = attacker.getName() + " k " + a.getName();
 								MessagePacket m = new MessagePacket(killshot);
-								outgoingPackets.add(m);
+								floors[attacker.getZ()].outgoing.add(m);
+								if (a.getType() == ActorType.ACTOR_POTION)
+									floors[attacker.getZ()].dead.add(a);
 							}
-							else
-								aUpdate.insertValue("health", a.getHealth());
-							outgoingPackets.add(aUpdate);
 						}
 					}
 				}
 			}
-			else if (!attacker.isAttacking())
-			{
-				ActorUpdate attackUpdate = new ActorUpdate(attackPacket.getAttacker());
-				attackUpdate.insertValue("attacking", false);
-				attackUpdate.insertValue("deltaX", (int) 0);
-				attackUpdate.insertValue("deltaY", (int) 0);
-				outgoingPackets.add(attackUpdate);
-			}
 		}
 	}
 
-	private synchronized void processUpdate(ActorUpdate actorUpdate)
+	private void processUpdate(ActorUpdate actorUpdate)
 	{
 		LOGGER.info("Processing update for playerID: {}",
 				actorUpdate.getActorID());
@@ -459,18 +949,34 @@ public class ServerModel implements Runnable
 			{
 				Actor actor = players.get(actorUpdate.getActorID());
 
-				if (actorUpdate.contains("X"))
-					actor.setX(((Long) actorUpdate.getValue("X")).intValue());
-
-				if (actorUpdate.contains("Y"))
-					actor.setY(((Long) actorUpdate.getValue("Y")).intValue());
+				// Only to somewhere the player could have walked to
+				if (actorUpdate.contains("X") || actorUpdate.contains("Y"))
+				{
+					int x = actorUpdate.contains("X") ? actorUpdate.getIntValue("X") : actor.getX();
+					int y = actorUpdate.contains("Y") ? actorUpdate.getIntValue("Y") : actor.getY();
+					int z = actor.getZ();
+					if (dungeon.validPoint(x, y, z) && paths.findPath(dungeon.index(actor.getX(), actor.getY(), z),
+							dungeon.index(x, y, z), MAX_UPDATE_STEPS, null) >= 0)
+					{
+						actor.setX(x);
+						actor.setY(y);
+					}
+				}
 
-				if (actorUpdate.contains("Z"))
-					actor.setZ(((Long) actorUpdate.getValue("Z")).intValue());
+				// Changing floor is a hand off like the stairs, and only from the matching stair
+				if (actorUpdate.contains("Z") && !isLeaving((Player) actor))
+				{
+					int x = actor.getX();
+					int y = actor.getY();
+					int z = actor.getZ();
+					int target = actorUpdate.getIntValue("Z");
+					if ((target == z + 1 && dungeon.isStairUp(x, y, z))
+							|| (target == z - 1 && dungeon.isStairDown(x, y, z)))
+						floors[z].leaving.add(new Floor.Transfer((Player) actor, target));
+				}
 
 				if (actorUpdate.contains("health"))
-					actor.setHealth(((Long) actorUpdate.getValue("health"))
-							.intValue());
+					actor.setHealth(actorUpdate.getIntValue("health"));
 
 				if (actorUpdate.contains("symbol"))
 					actor.setSymbol((String) actorUpdate.getValue("symbol"));
@@ -478,74 +984,88 @@ public class ServerModel implements Runnable
 				if (actorUpdate.contains("attacking")
 						&& actorUpdate.contains("deltaX")
 						&& actorUpdate.contains("deltaY"))
-					((Player) actor).setAttacking((Boolean) actorUpdate
-							.getValue("attacking"), new Point3D(
-									((Long) actorUpdate.getValue("deltaX")).intValue(),
-									((Long) actorUpdate.getValue("deltaY")).intValue(),
-									0));
+					((Player) actor).setAttacking((Boolean) actorUpdate.getValue("attacking"),
+							actorUpdate.getIntValue("deltaX"), actorUpdate.getIntValue("deltaY"));
 			}
-			this.outgoingPackets.add(actorUpdate);
 		}
 	}
 
-	private synchronized void processActor(ActorPacket actorPacket)
+	private void processActor(ActorPacket actorPacket)
 	{
 		LOGGER.info("Processing Actor");
 	}
 
-	private synchronized void processMovement(MovementPacket movementPacket)
+	private void processMovement(MovementPacket movementPacket)
 	{
 		LOGGER.info("Processing movement for playerID: {}",
 				movementPacket.getM_playerID());
 
 		if (players.containsKey(movementPacket.getM_playerID()))
 		{
-			if (attemptMove(movementPacket))
-			{
-				Player player = players.get(movementPacket.getM_playerID());
-				ActorUpdate attackUpdate = new ActorUpdate(movementPacket.getM_playerID());
-				attackUpdate.insertValue("attacking", false);
-				attackUpdate.insertValue("deltaX", (int) 0);
-				attackUpdate.insertValue("deltaY", (int) 0);
-				outgoingPackets.add(attackUpdate);
-
-				ActorUpdate actorUpdate = new ActorUpdate(
-						movementPacket.getM_playerID());
-				actorUpdate.insertValue("X", player.getX());
-				actorUpdate.insertValue("Y", player.getY());
-				actorUpdate.insertValue("Z", player.getZ());
-				outgoingPackets.add(actorUpdate);
-			}
+			attemptMove(movementPacket);
 		}
 
 	}
 
-	public void putIncoming(Packet packet)
+	/**
+	 * Queues a command from a client, it is applied on the next tick
+	 * @param packet the command
+	 * @return false if the command was dropped because too many are waiting
+	 */
+	public boolean putIncoming(Packet packet)
 	{
-		synchronized (this)
-		{
-			incomingPackets.add(packet);
-		}
+		return incomingPackets.offer(packet);
 	}
 
-	public synchronized void removePlayer(Integer playerID)
+	public void removePlayer(Integer playerID)
 	{
-		// Add a potion to kill floor
-		if (kill) {
-			addPotion(players.get(playerID).getZ());
-			kill = false;
+		Player player = players.get(playerID);
+		if (player == null)
+			return;
+		while (true)
+		{
+			Floor floor = floors[player.getZ()];
+			floor.lock.lock();
+			try
+			{
+				// The player took the stairs while we were waiting for the lock
+				if (player.getZ() != floor.z)
+					continue;
+				if (players.remove(playerID) == null)
+					return;
+				// Add a potion to kill floor, on its next tick
+				if (floor.kill) {
+					floor.potionsOwed++;
+					floor.kill = false;
+				}
+				System.out.println("Removing " + player);
+				scores.remove(player.getName());
+				floor.players.remove(player);
+				views.remove(playerID);
+				explored.remove(playerID);
+				untrack(player);
+				return;
+			}
+			finally
+			{
+				floor.lock.unlock();
+			}
 		}
-		System.out.println("Removing " + players.get(playerID));
-		scores.remove(players.get(playerID).getName());
-		players.remove(playerID);
-		ActorUpdate actorUpdate = new ActorUpdate(playerID);
-		actorUpdate.insertValue("remove", "remove");
+	}
 
-		outgoingPackets.add(actorUpdate);
+	/**
+	 * Stops ticking, the network servers keep running
+	 */
+	public void stop()
+	{
+		scheduler.stop();
+		if (ownsFloorPool)
+			floorPool.shutdown();
 	}
 
 	public void quit() throws IOException
 	{
+		stop();
 		TCPServer.quit();
 		UDPServer.quit();
 	}
@@ -553,37 +1073,39 @@ public class ServerModel implements Runnable
 	public boolean attemptMove(MovementPacket movementPacket)
 	{
 		Player player = players.get(movementPacket.getM_playerID());
-		Point3D newPosition = player.getPos().clone();
-		newPosition.translate((int) movementPacket.getM_newX(), (int) movementPacket.getM_newY());
+		int x = player.getX() + (int) movementPacket.getM_newX();
+		int y = player.getY() + (int) movementPacket.getM_newY();
+		int z = player.getZ();
+
+		// Already on the stairs, the player gets no further moves until the new floor is reached
+		if (isLeaving(player))
+			return false;
 
 		if (player.isAttacking() && !player.attemptAttackReset())
 			return false;
 
-		// Verify the new Point3D is inside the map
-		if (getDungeon().validPoint(newPosition))
+		// Verify the new position is inside the map
+		if (dungeon.validPoint(x, y, z))
 		{
-			int x = (int) newPosition.getX();
-			int y = (int) newPosition.getY();
-			int z = newPosition.getZ();
-			if (!occupied(newPosition))
+			if (!actorIndex.occupied(x, y, z))
 			{
 				if (dungeon.isEmptyFloor(x, y, z))
 				{
-					player.setPos(newPosition);
+					player.moveTo(x, y, z);
 					// dungeon.updateVisibleDungeon(me);
 					return true;
 				}
 				else if (dungeon.isStairUp(x, y, z))
 				{
-					player.setPos(newPosition);
-					player.move(new Point3D(0, 0, 1));
+					player.moveTo(x, y, z);
+					floors[z].leaving.add(new Floor.Transfer(player, z + 1));
 					// dungeon.updateVisibleDungeon(me);
 					return true;
 				}
 				else if (dungeon.isStairDown(x, y, z))
 				{
-					player.setPos(newPosition);
-					player.move(new Point3D(0, 0, -1));
+					player.moveTo(x, y, z);
+					floors[z].leaving.add(new Floor.Transfer(player, z - 1));
 					// dungeon.updateVisibleDungeon(me);
 					return true;
 				}
@@ -598,32 +1120,41 @@ public class ServerModel implements Runnable
 
 	public boolean attemptAttack(int playerID, Point3D delta)
 	{
-		Player player = players.get(playerID);
-		Point3D newPosition = player.getPos().clone();
-		newPosition.translate(delta.x, delta.y);
+		return attemptAttack(playerID, delta.x, delta.y);
+	}
 
-		int x = newPosition.x;
-		int y = newPosition.y;
-		int z = newPosition.getZ();
+	/**
+	 * Starts an attack of a player on the tile next to it, if it can attack there
+	 * @param playerID the attacking player
+	 * @param deltaX the columns from the player to the tile
+	 * @param deltaY the rows from the player to the tile
+	 * @return whether the attack started
+	 */
+	public boolean attemptAttack(int playerID, int deltaX, int deltaY)
+	{
+		Player player = players.get(playerID);
+		int x = player.getX() + deltaX;
+		int y = player.getY() + deltaY;
+		int z = player.getZ();
 
 		if (player.isAttacking() && player.attemptAttackReset())
 			return false;
 
-		if (!player.isAttacking() && (getDungeon().validPoint(newPosition)
-				&& (dungeon.isEmptyFloor(new Point3D(x, y, z)) || occupied(newPosition))))
+		if (!player.isAttacking() && (dungeon.validPoint(x, y, z)
+				&& (dungeon.isEmptyFloor(x, y, z) || actorIndex.occupied(x, y, z))))
 		{
-			player.setAttacking(true, delta);
+			player.setAttacking(true, deltaX, deltaY);
 			return true;
 		}
 
 		return false;
 	}
 
-	private boolean occupied(Point3D point)
+	private boolean isLeaving(Player player)
 	{
-		for (Actor actor : getActors())
+		for (Floor.Transfer transfer : floors[player.getZ()].leaving)
 		{
-			if (actor.getPos().equals(point))
+			if (transfer.player == player)
 				return true;
 		}
 		return false;
@@ -0,0 +1,207 @@
+package com.tsp.server.model;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.tsp.util.Rolling;
+
+/**
+ * Runs the simulation at a fixed rate
+ * <p>Every tick gets the same timestep. When a tick takes longer than its slot it is
+ * counted as an overrun, and if the loop falls more than a whole tick behind it skips
+ * ahead instead of running a burst of back to back ticks to catch up.</p>
+ */
+public class TickScheduler
+{
+	private static final Logger LOGGER = LoggerFactory.getLogger(TickScheduler.class);
+	// How often the tick metrics are logged
+	private static final int REPORT_SECONDS = 10;
+
+	private final int ticksPerSecond;
+	private final long tickNanos;
+	private final Rolling tickMillis = new Rolling(100);
+	private volatile boolean running = true;
+	private volatile long tick = 0;
+	private volatile long lastTickNanos = 0;
+	private volatile long maxTickNanos = 0;
+	private volatile long overruns = 0;
+	private volatile long skippedTicks = 0;
+
+	/**
+	 * Creates a scheduler
+	 * @param ticksPerSecond the simulation rate, I.E. 20, 30 or 60
+	 */
+	public TickScheduler(int ticksPerSecond)
+	{
+		if (ticksPerSecond <= 0)
+			throw new IllegalArgumentException("Tick rate must be positive");
+		this.ticksPerSecond = ticksPerSecond;
+		this.tickNanos = 1000000000L / ticksPerSecond;
+	}
+
+	/**
+	 * Runs the tick body at the fixed rate until {@link #stop()} is called
+	 * @param body the work done every tick
+	 */
+	public void run(Runnable body)
+	{
+		long next = System.nanoTime();
+		while (running)
+		{
+			next = step(body, next);
+			long wait = next - System.nanoTime();
+			if (wait > 0)
+				LockSupport.parkNanos(wait);
+		}
+	}
+
+	/**
+	 * Runs the tick body at the fixed rate on a shared executor until {@link #stop()} is called,
+	 * no thread is held between ticks
+	 * @param executor the executor running the ticks, it may run the ticks of other schedulers too
+	 * @param body the work done every tick
+	 */
+	public void start(final ScheduledExecutorService executor, final Runnable body)
+	{
+		executor.execute(new Runnable()
+		{
+			private long next = System.nanoTime();
+
+			@Override
+			public void run()
+			{
+				if (!running)
+					return;
+				try
+				{
+					next = step(body, next);
+				}
+				finally
+				{
+					// Keep ticking whatever the tick threw, otherwise the room silently stops
+					if (running)
+						executor.schedule(this, next - System.nanoTime(), TimeUnit.NANOSECONDS);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Runs one tick
+	 * @param body the work done every tick
+	 * @param next when the tick was due
+	 * @return when the next tick is due
+	 */
+	private long step(Runnable body, long next)
+	{
+		long start = System.nanoTime();
+		try
+		{
+			body.run();
+		}
+		catch (RuntimeException e)
+		{
+			LOGGER.error("Tick {} failed", tick + 1, e);
+		}
+		long end = System.nanoTime();
+		record(end - start);
+
+		next += tickNanos;
+		long wait = next - end;
+		if (wait <= 0)
+		{
+			overruns++;
+			if (-wait > tickNanos)
+			{
+				skippedTicks += -wait / tickNanos;
+				next = end;
+			}
+		}
+		return next;
+	}
+
+	private void record(long nanos)
+	{
+		tick++;
+		lastTickNanos = nanos;
+		if (nanos > maxTickNanos)
+			maxTickNanos = nanos;
+		tickMillis.add(nanos / 1000000.0);
+		if (tick % (ticksPerSecond * REPORT_SECONDS) == 0)
+		{
+			LOGGER.info("Tick {}: avg {} ms, max {} ms, budget {} ms, overruns {}, skipped {}",
+			            tick, String.format("%.3f", tickMillis.getAverage()),
+			            String.format("%.3f", maxTickNanos / 1000000.0),
+			            String.format("%.3f", tickNanos / 1000000.0), overruns, skippedTicks);
+		}
+	}
+
+	public void stop()
+	{
+		running = false;
+	}
+
+	public int getTicksPerSecond()
+	{
+		return ticksPerSecond;
+	}
+
+	/**
+	 * Gets the fixed timestep
+	 * @return the length of one tick in nanoseconds
+	 */
+	public long getTickNanos()
+	{
+		return tickNanos;
+	}
+
+	/**
+	 * Gets the number of ticks run so far
+	 * @return the tick count
+	 */
+	public long getTick()
+	{
+		return tick;
+	}
+
+	public long getLastTickNanos()
+	{
+		return lastTickNanos;
+	}
+
+	public long getMaxTickNanos()
+	{
+		return maxTickNanos;
+	}
+
+	/**
+	 * Gets the average tick duration over the last 100 ticks
+	 * @return the average in milliseconds
+	 */
+	public double getAverageTickMillis()
+	{
+		return tickMillis.getAverage();
+	}
+
+	/**
+	 * Gets the number of ticks that took longer than the timestep
+	 * @return the overrun count
+	 */
+	public long getOverruns()
+	{
+		return overruns;
+	}
+
+	/**
+	 * Gets the number of tick slots dropped because the loop fell too far behind
+	 * @return the skipped tick count
+	 */
+	public long getSkippedTicks()
+	{
+		return skippedTicks;
+	}
+}
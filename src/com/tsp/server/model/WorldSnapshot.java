@@ -0,0 +1,343 @@
+package com.tsp.server.model;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
+
+import com.tsp.game.actors.Actor;
+import com.tsp.game.actors.Player;
+import com.tsp.game.map.Point3D;
+import com.tsp.packets.SnapshotPacket;
+
+/**
+ * An immutable copy of the state of every live actor at the end of a tick
+ * <p>The server takes one snapshot per tick and every connection diffs it against the
+ * last snapshot it sent, so what goes over the wire only depends on what changed near
+ * the client. Actors with no health left are not part of a snapshot, to clients they
+ * are removed.</p>
+ * <p>The actors are stored sorted by id in parallel arrays, positions kept packed, see
+ * {@link Point3D#pack(int, int, int)}. They are also bucketed by blocks of tiles, so a
+ * player's diff only looks at the actors in the blocks around it and the ones its client
+ * already knows, and costs as much as the crowd around the player rather than the whole
+ * world. A full feed is diffed against the whole snapshot in one pass.</p>
+ */
+public final class WorldSnapshot
+{
+	private static final Comparator<Actor> BY_ID = new Comparator<Actor>()
+	{
+		@Override
+		public int compare(Actor a, Actor b)
+		{
+			return Integer.compare(a.getId(), b.getId());
+		}
+	};
+
+	// Actors are bucketed by blocks of 8 x 8 tiles
+	private static final int BUCKET_SHIFT = 3;
+
+	private final int tick;
+	private final int size;
+	private final int[] ids;
+	private final long[] pos;
+	private final int[] health;
+	private final String[] symbol;
+	private final boolean[] attacking;
+	private final int[] deltaX;
+	private final int[] deltaY;
+	// The last input applied to every player, 0 for other actors
+	private final int[] input;
+	private final Actor[] actors;
+	// The bucket of every actor in the high half and its index in the low half, sorted
+	private final long[] cells;
+	private final int bucketCols;
+	private final int bucketRows;
+
+	private WorldSnapshot(int tick, Actor[] live, int size, int cols, int rows)
+	{
+		this.tick = tick;
+		this.size = size;
+		ids = new int[size];
+		pos = new long[size];
+		health = new int[size];
+		symbol = new String[size];
+		attacking = new boolean[size];
+		deltaX = new int[size];
+		deltaY = new int[size];
+		input = new int[size];
+		actors = live;
+		cells = new long[size];
+		bucketCols = ((cols - 1) >> BUCKET_SHIFT) + 1;
+		bucketRows = ((rows - 1) >> BUCKET_SHIFT) + 1;
+		for (int i = 0; i < size; i++)
+		{
+			Actor actor = live[i];
+			ids[i] = actor.getId();
+			pos[i] = Point3D.pack(actor.getX(), actor.getY(), actor.getZ());
+			health[i] = actor.getHealth();
+			symbol[i] = actor.getSymbol();
+			if (actor instanceof Player)
+				input[i] = ((Player) actor).getLastInput();
+			if (actor instanceof Player && ((Player) actor).isAttacking())
+			{
+				attacking[i] = true;
+				deltaX[i] = (int) ((Player) actor).getDelta().getX();
+				deltaY[i] = (int) ((Player) actor).getDelta().getY();
+			}
+			cells[i] = (long) bucket(actor.getX() >> BUCKET_SHIFT, actor.getY() >> BUCKET_SHIFT, actor.getZ()) << 32 | i;
+		}
+		Arrays.sort(cells);
+	}
+
+	/**
+	 * Copies the state of the actors, must be called by the thread running the tick
+	 * @param tick the tick the snapshot is taken on
+	 * @param actors every actor in the world
+	 * @param cols the number of columns of the dungeon
+	 * @param rows the number of rows of the dungeon
+	 * @return the snapshot
+	 */
+	public static WorldSnapshot capture(int tick, Collection<Actor> actors, int cols, int rows)
+	{
+		Actor[] live = new Actor[actors.size()];
+		int size = 0;
+		for (Actor actor : actors)
+		{
+			if (size == live.length)
+				live = Arrays.copyOf(live, size * 2 + 1);
+			if (actor.getHealth() > 0)
+				live[size++] = actor;
+		}
+		Arrays.sort(live, 0, size, BY_ID);
+		return new WorldSnapshot(tick, live, size, cols, rows);
+	}
+
+	public int getTick()
+	{
+		return tick;
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * Builds the packet that brings a client up to date with this snapshot
+	 * <p>Only actors in the clients area of interest are sent. The interest is updated
+	 * with what the client holds once the packet is built.</p>
+	 * @param baseline the last snapshot diffed for the client, null if there was none yet
+	 * @param interest the area the client is interested in
+	 * @return the changes, empty when nothing the client cares about changed
+	 */
+	public SnapshotPacket diff(WorldSnapshot baseline, Interest interest)
+	{
+		SnapshotPacket packet = new SnapshotPacket(tick);
+		// When the owner has new inputs acknowledged its position is sent even if unchanged,
+		// the client rebuilds its predicted position from it
+		boolean acking = false;
+		if (!interest.isFullFeed())
+		{
+			int owner = Arrays.binarySearch(ids, 0, size, interest.getOwnerID());
+			if (owner >= 0)
+			{
+				interest.center(Point3D.unpackX(pos[owner]), Point3D.unpackY(pos[owner]),
+				                Point3D.unpackZ(pos[owner]));
+				acking = input[owner] != interest.acked;
+				interest.acked = input[owner];
+				packet.setAck(input[owner]);
+			}
+		}
+		if (interest.isFullFeed())
+			diffAll(packet, baseline, interest);
+		else
+			diffNear(packet, baseline, interest, acking);
+		return packet;
+	}
+
+	/**
+	 * Diffs every actor against the baseline in one pass over both
+	 */
+	private void diffAll(SnapshotPacket packet, WorldSnapshot baseline, Interest interest)
+	{
+		int i = 0;
+		int j = 0;
+		int baseSize = baseline == null ? 0 : baseline.size;
+		while (i < size || j < baseSize)
+		{
+			if (j == baseSize || (i < size && ids[i] < baseline.ids[j]))
+			{
+				if (contains(interest, i))
+					show(packet, i, interest);
+				i++;
+			}
+			else if (i == size || baseline.ids[j] < ids[i])
+			{
+				int id = baseline.ids[j];
+				if (interest.known.get(id))
+				{
+					packet.addRemoved(id);
+					interest.known.clear(id);
+					interest.inView.clear(id);
+				}
+				j++;
+			}
+			else
+			{
+				int id = ids[i];
+				if (contains(interest, i))
+				{
+					if (interest.inView.get(id))
+					{
+						int fields = changedFields(i, baseline, j);
+						if (fields != 0)
+							packet.addEntry(entry(i, fields));
+					}
+					else
+					{
+						show(packet, i, interest);
+					}
+				}
+				else if (interest.inView.get(id))
+				{
+					packet.addHidden(id);
+					interest.inView.clear(id);
+				}
+				i++;
+				j++;
+			}
+		}
+	}
+
+	/**
+	 * Diffs the actors the client knows and those in the blocks around it
+	 * @param acking true to send the position of the owner even if unchanged
+	 */
+	private void diffNear(SnapshotPacket packet, WorldSnapshot baseline, Interest interest, boolean acking)
+	{
+		// What the client holds that is gone, or out of its area
+		BitSet known = interest.known;
+		for (int id = known.nextSetBit(0); id >= 0; id = known.nextSetBit(id + 1))
+		{
+			int i = indexOf(id);
+			if (i < 0)
+			{
+				packet.addRemoved(id);
+				known.clear(id);
+				interest.inView.clear(id);
+			}
+			else if (interest.inView.get(id) && !contains(interest, i))
+			{
+				packet.addHidden(id);
+				interest.inView.clear(id);
+			}
+		}
+		// The owner was never in the world
+		if (interest.z < 0)
+			return;
+		int z = interest.z;
+		int minX = Math.max(0, interest.x - interest.radiusX) >> BUCKET_SHIFT;
+		int maxX = Math.min(bucketCols - 1, (interest.x + interest.radiusX) >> BUCKET_SHIFT);
+		int minY = Math.max(0, interest.y - interest.radiusY) >> BUCKET_SHIFT;
+		int maxY = Math.min(bucketRows - 1, (interest.y + interest.radiusY) >> BUCKET_SHIFT);
+		for (int bx = minX; bx <= maxX; bx++)
+		{
+			// The buckets of a column are next to each other
+			long last = bucket(bx, maxY, z);
+			for (int k = firstCell(bucket(bx, minY, z)); k < size && cells[k] >> 32 <= last; k++)
+			{
+				int i = (int) cells[k];
+				if (!contains(interest, i))
+					continue;
+				int id = ids[i];
+				int j = baseline == null || !interest.inView.get(id) ? -1 : baseline.indexOf(id);
+				if (j < 0)
+				{
+					show(packet, i, interest);
+					continue;
+				}
+				int fields = changedFields(i, baseline, j);
+				if (acking && id == interest.getOwnerID())
+					fields |= SnapshotPacket.X | SnapshotPacket.Y | SnapshotPacket.Z;
+				if (fields != 0)
+					packet.addEntry(entry(i, fields));
+			}
+		}
+	}
+
+	private int bucket(int bx, int by, int z)
+	{
+		bx = Math.min(Math.max(bx, 0), bucketCols - 1);
+		by = Math.min(Math.max(by, 0), bucketRows - 1);
+		return (Math.max(z, 0) * bucketCols + bx) * bucketRows + by;
+	}
+
+	/**
+	 * Finds the first actor in a bucket or after it
+	 * @return the index in cells, size if there is none
+	 */
+	private int firstCell(int bucket)
+	{
+		long key = (long) bucket << 32;
+		int low = 0;
+		int high = size;
+		while (low < high)
+		{
+			int mid = (low + high) >>> 1;
+			if (cells[mid] < key)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+	private int indexOf(int id)
+	{
+		return Arrays.binarySearch(ids, 0, size, id);
+	}
+
+	private boolean contains(Interest interest, int i)
+	{
+		return interest.contains(ids[i], Point3D.unpackX(pos[i]), Point3D.unpackY(pos[i]), Point3D.unpackZ(pos[i]));
+	}
+
+	private void show(SnapshotPacket packet, int i, Interest interest)
+	{
+		packet.addEntry(entry(i, SnapshotPacket.ALL));
+		interest.inView.set(ids[i]);
+		interest.known.set(ids[i]);
+	}
+
+	private int changedFields(int i, WorldSnapshot baseline, int j)
+	{
+		int fields = 0;
+		long now = pos[i];
+		long then = baseline.pos[j];
+		if (now != then)
+		{
+			if (Point3D.unpackX(now) != Point3D.unpackX(then))
+				fields |= SnapshotPacket.X;
+			if (Point3D.unpackY(now) != Point3D.unpackY(then))
+				fields |= SnapshotPacket.Y;
+			if (Point3D.unpackZ(now) != Point3D.unpackZ(then))
+				fields |= SnapshotPacket.Z;
+		}
+		if (health[i] != baseline.health[j])
+			fields |= SnapshotPacket.HEALTH;
+		if (symbol[i] == null ? baseline.symbol[j] != null : !symbol[i].equals(baseline.symbol[j]))
+			fields |= SnapshotPacket.SYMBOL;
+		if (attacking[i] != baseline.attacking[j] || deltaX[i] != baseline.deltaX[j]
+		    || deltaY[i] != baseline.deltaY[j])
+			fields |= SnapshotPacket.ATTACK;
+		return fields;
+	}
+
+	private SnapshotPacket.Entry entry(int i, int fields)
+	{
+		Actor actor = actors[i];
+		return new SnapshotPacket.Entry(ids[i], fields, Point3D.unpackX(pos[i]), Point3D.unpackY(pos[i]),
+		                                Point3D.unpackZ(pos[i]), health[i], symbol[i], attacking[i],
+		                                deltaX[i], deltaY[i], actor.getName(), actor.getType(), actor.getColor());
+	}
+}
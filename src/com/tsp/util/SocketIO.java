@@ -1,114 +1,283 @@
 package com.tsp.util;
 
+import java.io.EOFException;
 import java.io.IOException;
-import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
-import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
 
 /**
+ * Buffered framing over a socket channel
+ * <p>Reads go through one direct buffer that keeps any bytes past the current value, so a
+ * frame that arrives in pieces is put back together across selector wakeups instead of
+ * being dropped. Writes are put together in a second direct buffer and sent in one go.
+ * Strings are UTF-8 with a reused encoder and decoder. Nothing is allocated per call
+ * except the strings handed out.</p>
+ * <p>The Read methods block until the value is complete and are meant for the handshake
+ * while the channel is blocking. Once the channel is non-blocking use
+ * {@link #ReadAvailable()} and {@link #NextFrame()} instead.</p>
+ *
  * @author Tim
  */
 public class SocketIO {
+    private static final int BUFFER_SIZE = 16384;
+    // Anything bigger is a corrupt stream, not a frame
+    private static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
     SocketChannel socketChannel = null;
+    // Received bytes not consumed yet, kept ready for reading
+    private ByteBuffer readBuffer;
+    // Allocated on the first write, connections that only read never need it
+    private ByteBuffer writeBuffer;
+    // A view of the last frame handed out, shares the read buffer
+    private ByteBuffer frame;
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private CharBuffer chars = CharBuffer.allocate(256);
 
     public SocketIO(SocketChannel socketChannel) {
         this.socketChannel = socketChannel;
+        readBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        readBuffer.flip();
+        frame = readBuffer.duplicate();
     }
 
     public void WriteShort(short value) throws IOException {
-        ByteBuffer buf = ByteBuffer.allocate(2);
-        buf.putShort(value);
-        buf.flip();
-        while (buf.hasRemaining())
-            socketChannel.write(buf);
+        startWrite(8);
+        writeBuffer.putShort(value);
+        flush();
     }
 
     public void WriteInt(int value) throws IOException {
-        ByteBuffer buf = ByteBuffer.allocate(4);
-        buf.putInt(value);
-        buf.flip();
-        while (buf.hasRemaining())
-            socketChannel.write(buf);
+        startWrite(8);
+        writeBuffer.putInt(value);
+        flush();
     }
 
     public void WriteLong(long value) throws IOException {
-        ByteBuffer buf = ByteBuffer.allocate(8);
-        buf.putLong(value);
-        buf.flip();
-        while (buf.hasRemaining())
-            socketChannel.write(buf);
+        startWrite(8);
+        writeBuffer.putLong(value);
+        flush();
     }
 
     public void WriteChar(char value) throws IOException {
-        ByteBuffer buf = ByteBuffer.allocate(1);
-        buf.putChar(value);
-        buf.flip();
-        while (buf.hasRemaining())
-            socketChannel.write(buf);
+        startWrite(8);
+        writeBuffer.putChar(value);
+        flush();
     }
 
     public short ReadShort() throws IOException {
-        ByteBuffer buf = ByteBuffer.allocate(2);
-        int read = socketChannel.read(buf);
-        if (read != 2)
-            throw new IOException("Short not read");
-        buf.flip();
-        return buf.getShort();
+        require(2);
+        return readBuffer.getShort();
     }
 
     public int ReadInt() throws IOException {
-        ByteBuffer buf = ByteBuffer.allocate(4);
-        int read = socketChannel.read(buf);
-        if (read != 4)
-            throw new IOException("Short not read");
-        buf.flip();
-        return buf.getInt();
+        require(4);
+        return readBuffer.getInt();
     }
 
     public long ReadLong() throws IOException {
-        ByteBuffer buf = ByteBuffer.allocate(8);
-        int read = socketChannel.read(buf);
-        if (read != 8)
-            throw new IOException("Short not read");
-        buf.flip();
-        return buf.getLong();
+        require(8);
+        return readBuffer.getLong();
     }
 
     public char ReadChar() throws IOException {
-        ByteBuffer buf = ByteBuffer.allocate(1);
-        int read = socketChannel.read(buf);
-        if (read != 1)
-            throw new IOException("Short not read");
-        buf.flip();
-        return buf.getChar();
+        require(2);
+        return readBuffer.getChar();
     }
 
     public void WriteString(String string) throws IOException {
-        byte[] str = string.getBytes();
-        int size = str.length;
-        ByteBuffer buf = ByteBuffer.allocate(size + 4);
-        buf.putInt(size).put(str);
-        buf.flip();
-        while (buf.hasRemaining())
-            socketChannel.write(buf);
+        startWrite(string.length() + 4);
+        writeBuffer.position(4);
+        CharBuffer in = CharBuffer.wrap(string);
+        encoder.reset();
+        while (true) {
+            CoderResult result = encoder.encode(in, writeBuffer, true);
+            if (result.isOverflow()) {
+                growWriteBuffer();
+                continue;
+            }
+            result = encoder.flush(writeBuffer);
+            if (result.isOverflow()) {
+                growWriteBuffer();
+                continue;
+            }
+            break;
+        }
+        writeBuffer.putInt(0, writeBuffer.position() - 4);
+        flush();
+    }
+
+    public String ReadString() throws IOException {
+        return DecodeString(this.ReadBytes());
+    }
+
+    /**
+     * Decodes the remaining bytes of a buffer as UTF-8, bad input is replaced
+     * @param buf the bytes of the string
+     * @return the string
+     */
+    public String DecodeString(ByteBuffer buf) {
+        int needed = (int) (buf.remaining() * (double) decoder.maxCharsPerByte()) + 1;
+        if (chars.capacity() < needed)
+            chars = CharBuffer.allocate(needed);
+        chars.clear();
+        decoder.reset();
+        decoder.decode(buf, chars, true);
+        decoder.flush(chars);
+        chars.flip();
+        return chars.toString();
+    }
+
+    /**
+     * Writes the remaining bytes of the buffer as one length prefixed frame
+     * @param frame the frame contents
+     * @throws IOException when the channel errors
+     */
+    public void WriteBytes(ByteBuffer frame) throws IOException {
+        startWrite(frame.remaining() + 4);
+        writeBuffer.putInt(frame.remaining()).put(frame);
+        flush();
     }
 
-    public String ReadString() throws IOException{
+    /**
+     * Reads one length prefixed frame, blocking until all of it arrived
+     * @return a view of the frame contents, only valid until the next read
+     * @throws IOException when the channel errors or closes
+     */
+    public ByteBuffer ReadBytes() throws IOException {
         int size = this.ReadInt();
-        ByteBuffer buf = ByteBuffer.allocate(size);
-        int read = 0;
-        while (read < size) {
-            int r = socketChannel.read(buf);
-            if (r < 0)
-                throw new IOException("Short not read");
-            read += r;
+        checkSize(size);
+        require(size);
+        return takeFrame(size);
+    }
+
+    /**
+     * Reads whatever the channel has without blocking, for non-blocking channels
+     * @return the number of bytes read, -1 when the channel was closed
+     * @throws IOException when the channel errors or a frame is too large
+     */
+    public int ReadAvailable() throws IOException {
+        if (readBuffer.remaining() >= 4) {
+            int size = readBuffer.getInt(readBuffer.position());
+            checkSize(size);
+            ensureCapacity(size + 4);
+        }
+        readBuffer.compact();
+        try {
+            return socketChannel.read(readBuffer);
+        } finally {
+            readBuffer.flip();
+        }
+    }
+
+    /**
+     * Takes the next whole frame out of the bytes read so far
+     * @return a view of the frame contents, only valid until the next read,
+     * or null if the next frame has not fully arrived yet
+     * @throws IOException when the frame is too large
+     */
+    public ByteBuffer NextFrame() throws IOException {
+        if (readBuffer.remaining() < 4)
+            return null;
+        int size = readBuffer.getInt(readBuffer.position());
+        checkSize(size);
+        if (readBuffer.remaining() < size + 4)
+            return null;
+        readBuffer.getInt();
+        return takeFrame(size);
+    }
+
+    private ByteBuffer takeFrame(int size) {
+        int start = readBuffer.position();
+        frame.limit(start + size).position(start);
+        readBuffer.position(start + size);
+        return frame;
+    }
+
+    private void checkSize(int size) throws IOException {
+        if (size < 0 || size > MAX_FRAME_SIZE)
+            throw new IOException("Bad frame size " + size);
+    }
+
+    /**
+     * Blocks until at least the given number of bytes are buffered
+     */
+    private void require(int bytes) throws IOException {
+        if (readBuffer.remaining() >= bytes)
+            return;
+        ensureCapacity(bytes);
+        readBuffer.compact();
+        try {
+            while (readBuffer.position() < bytes) {
+                if (socketChannel.read(readBuffer) < 0)
+                    throw new EOFException("Channel closed");
+            }
+        } finally {
+            readBuffer.flip();
         }
-        buf.flip();
-        CharBuffer charBuffer = Charset.defaultCharset().decode(buf);
+    }
 
-        return charBuffer.toString();
+    /**
+     * Makes room for a value of the given size, the read buffer stays ready for reading
+     */
+    private void ensureCapacity(int bytes) {
+        if (readBuffer.capacity() >= bytes)
+            return;
+        ByteBuffer bigger = ByteBuffer.allocateDirect(Math.max(bytes, readBuffer.capacity() * 2));
+        bigger.put(readBuffer);
+        bigger.flip();
+        readBuffer = bigger;
+        frame = readBuffer.duplicate();
+    }
+
+    private void startWrite(int bytes) {
+        if (writeBuffer == null || writeBuffer.capacity() < bytes)
+            writeBuffer = ByteBuffer.allocateDirect(Math.max(BUFFER_SIZE, bytes));
+        writeBuffer.clear();
+    }
+
+    private void growWriteBuffer() {
+        ByteBuffer bigger = ByteBuffer.allocateDirect(writeBuffer.capacity() * 2);
+        writeBuffer.flip();
+        bigger.put(writeBuffer);
+        writeBuffer = bigger;
+    }
+
+    /**
+     * Sends the write buffer, a non-blocking channel that cannot take more waits in a
+     * selector until it can instead of spinning on write
+     */
+    private void flush() throws IOException {
+        writeBuffer.flip();
+        Selector selector = null;
+        try {
+            while (writeBuffer.hasRemaining()) {
+                if (socketChannel.write(writeBuffer) > 0 || socketChannel.isBlocking())
+                    continue;
+                if (selector == null) {
+                    selector = Selector.open();
+                    socketChannel.register(selector, SelectionKey.OP_WRITE);
+                }
+                selector.select();
+                selector.selectedKeys().clear();
+            }
+        } finally {
+            if (selector != null)
+                selector.close();
+            writeBuffer.clear();
+        }
     }
 
 }
@@ -6,11 +6,13 @@ import com.tsp.packets.ActorUpdate;
 import com.tsp.packets.AttackPacket;
 import com.tsp.packets.MovementPacket;
 import com.tsp.packets.Packet;
+import com.tsp.packets.Protocol;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Map;
 
@@ -32,6 +34,8 @@ public class ConnectionController implements GameListener
 	private DatagramSocket socket;
 	InetAddress addr;
 	int port = 12000;
+	Protocol protocol = Protocol.BINARY;
+	private final ByteBuffer sendBuffer = ByteBuffer.allocate(1024);
 
 	/**
 	 * Creates a new Connection Controller with the default network address of the localhost
@@ -118,6 +122,16 @@ public class ConnectionController implements GameListener
 		}
 	}
 
+	/**
+	 * Sets the encoding of the datagrams, the server accepts both
+	 *
+	 * @param protocol the packet encoding to use
+	 */
+	public void setProtocol(Protocol protocol)
+	{
+		this.protocol = protocol;
+	}
+
 	/**
 	 * {@inheritDoc}
 	 *
@@ -195,9 +209,10 @@ public class ConnectionController implements GameListener
 			if (socket != null)
 			{
 				LOGGER.info("Sending Packet @ {}: {}", System.currentTimeMillis(), packet);
-				byte[] data = packet.toJSONString().getBytes();
-				DatagramPacket response = new DatagramPacket(data,
-				                                             data.length,
+				sendBuffer.clear();
+				protocol.encode(packet, sendBuffer);
+				DatagramPacket response = new DatagramPacket(sendBuffer.array(),
+				                                             sendBuffer.position(),
 				                                             addr,
 				                                             12000);
 				try
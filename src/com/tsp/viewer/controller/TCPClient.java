@@ -2,14 +2,15 @@ package com.tsp.viewer.controller;
 
 import com.tsp.game.actors.Actor;
 import com.tsp.game.actors.Player;
+import com.tsp.game.map.Dungeon;
+import com.tsp.game.map.DungeonCodec;
 import com.tsp.packets.ActorPacket;
 import com.tsp.packets.Packet;
+import com.tsp.packets.Protocol;
 import com.tsp.packets.QuitPacket;
 import com.tsp.util.Rolling;
 import com.tsp.util.SocketIO;
 import com.tsp.viewer.model.GameModel;
-import org.json.simple.JSONObject;
-import org.json.simple.JSONValue;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -19,6 +20,7 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
@@ -45,6 +47,9 @@ public class TCPClient extends Thread
 	GameModel model;
 	int port = 12000;
 	boolean running = true;
+	Protocol protocol = Protocol.BINARY;
+	// The room to play in, the server puts clients that do not ask for one in its default room
+	String room = System.getProperty("tsp.room", "");
 	//DataInputStream is;
 	//DataOutputStream os;
 	SocketIO socketIO;
@@ -106,8 +111,8 @@ public class TCPClient extends Thread
 		try
 		{
 			connect();
-			model.setDungeon(getDungeon());
 			sendName("TSPVIEWER");
+			model.setDungeon(getDungeon());
 			int id = this.getID();
 			model.setID(id);
 			//Tells the model that every thing is ready
@@ -116,6 +121,8 @@ public class TCPClient extends Thread
 			Selector selector = Selector.open();
 			clientSocket.configureBlocking(false);
 			clientSocket.register(selector, SelectionKey.OP_READ);
+			// The handshake may have read past its own data
+			dispatchFrames();
 			while (running)
 			{
 				try
@@ -155,20 +162,19 @@ public class TCPClient extends Thread
 	/**
 	 * Gets the dungeon map from the server
 	 *
-	 * @return an array containing the dungeon
+	 * @return the dungeon, sent as one block by the server
 	 * @throws IOException when the {@link DataInputStream} errors
 	 */
-	public String[][][] getDungeon() throws IOException
+	public Dungeon getDungeon() throws IOException
 	{
-		int Columns = socketIO.ReadInt();
-		int Rows = socketIO.ReadInt();
-		int Floors = socketIO.ReadInt();
-		String[][][] dungeon = new String[Floors][Columns][Rows];
-		for (int z = 0; z < Floors; z++)
-			for (int x = 0; x < Columns; x++)
-				for (int y = 0; y < Rows; y++)
-					dungeon[z][x][y] = socketIO.ReadString();
-		return dungeon;
+		try
+		{
+			return DungeonCodec.decode(socketIO.ReadBytes());
+		}
+		catch (IllegalArgumentException e)
+		{
+			throw new IOException("Bad dungeon from server: " + e.getMessage());
+		}
 	}
 
 	/**
@@ -190,7 +196,30 @@ public class TCPClient extends Thread
 	 */
 	public void sendName(String name) throws IOException
 	{
-		socketIO.WriteString(name);
+		socketIO.WriteString(protocol.hello(name, room));
+	}
+
+	/**
+	 * Sets the room asked for during the handshake, must be called before the client starts
+	 * @param room the name of the room, empty for the default room
+	 */
+	public void setRoom(String room)
+	{
+		this.room = room;
+	}
+
+	/**
+	 * Sets the protocol asked for during the handshake, must be called before the client starts
+	 * @param protocol the packet encoding to use
+	 */
+	public void setProtocol(Protocol protocol)
+	{
+		this.protocol = protocol;
+	}
+
+	public Protocol getProtocol()
+	{
+		return protocol;
 	}
 
 	/**
@@ -213,11 +242,9 @@ public class TCPClient extends Thread
 	 */
 	private Player getPlayer() throws IOException
 	{
-		String json = socketIO.ReadString();
-		Object object = JSONValue.parse(json);
-		if (object != null && object instanceof JSONObject)
+		Packet packet = protocol.decode(socketIO.ReadBytes());
+		if (packet != null)
 		{
-			Packet packet = Packet.parseJSONObject((JSONObject) object);
 			if (packet.getPacketType() == Packet.PacketType.ACTOR_PACKET)
 				if (((ActorPacket) packet).getActor().getType() == Actor.ActorType.ACTOR_PLAYER)
 				{
@@ -249,8 +276,7 @@ public class TCPClient extends Thread
 		{
 			// Get channel with bytes to read
 			// SocketChannel sChannel = (SocketChannel)selKey.channel();
-			model.insertPacket(getPacket());
-			// See Reading from a SocketChannel
+			readPackets();
 		}
 		if (selKey.isValid() && selKey.isWritable())
 		{
@@ -261,33 +287,34 @@ public class TCPClient extends Thread
 	}
 
 	/**
-	 * Gets a packet from the server
-	 *
-	 * @return null if nothing was there, and a packet from the JSON sent from the server
+	 * Reads what the server sent without blocking and hands every complete packet to the model,
+	 * a packet that only partly arrived is kept until the rest comes in
+	 * @throws IOException when the server closed the connection
 	 */
-	public Packet getPacket()
+	private void readPackets() throws IOException
 	{
-		try
-		{
-
-
-			String json = socketIO.ReadString();
-
+		if (socketIO.ReadAvailable() < 0)
+			throw new IOException("Server closed the connection");
+		dispatchFrames();
+	}
 
-			Object object = JSONValue.parse(json);
-			if (object != null && object instanceof JSONObject)
+	/**
+	 * Hands every complete packet already read to the model
+	 */
+	private void dispatchFrames() throws IOException
+	{
+		ByteBuffer frame;
+		while ((frame = socketIO.NextFrame()) != null)
+		{
+			try
 			{
-
-				LOGGER.debug("Average Retrieve time: {}", rolling.getAverage());
-				Packet packet = Packet.parseJSONObject((JSONObject) object);
-				return packet;
+				model.insertPacket(protocol.decode(frame));
+			}
+			catch (IllegalArgumentException e)
+			{
+				LOGGER.info("Dropping bad packet: {}", e.getMessage());
 			}
 		}
-		catch (IOException e)
-		{
-			return null;
-		}
-		return null;
 	}
 
 	/**
@@ -310,7 +337,10 @@ public class TCPClient extends Thread
 	{
 		if (socketIO != null)
 		{
-			socketIO.WriteString(new QuitPacket().toJSONString());
+			ByteBuffer buf = ByteBuffer.allocate(64);
+			protocol.encode(new QuitPacket(), buf);
+			buf.flip();
+			socketIO.WriteBytes(buf);
 		}
 
 		if (clientSocket != null)
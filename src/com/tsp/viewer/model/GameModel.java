@@ -2,9 +2,11 @@ package com.tsp.viewer.model;
 
 import com.tsp.game.actors.Actor;
 import com.tsp.game.actors.Player;
+import com.tsp.game.actors.SpatialIndex;
 import com.tsp.game.map.Dungeon;
 import com.tsp.game.map.Point3D;
 import com.tsp.packets.ActorUpdate;
+import com.tsp.packets.SnapshotPacket;
 import com.tsp.packets.Packet;
 
 import java.awt.*;
@@ -24,6 +26,8 @@ public class GameModel
 
 	//Game tile types
 	private HashMap<Integer, Actor> otherActors;
+	// Where the actors stand, created with the dungeon
+	private SpatialIndex actorIndex;
 	private boolean ready = false;
 
 	private Dungeon dungeon;
@@ -51,42 +55,63 @@ public class GameModel
 	/* Methods used to get symbols and colors for drawing in the map */
 	public String getSymbol(int y, int x, int z)
 	{
-		Point3D point = new Point3D(x, y, z);
-
-		for (Actor a : otherActors.values())
+		Actor a = actorIndex.actorAt(x, y, z);
+		if (a != null)
 		{
-			if (a.getPos().equals(point))
-			{
-				return a.getSymbol();
-			}
-			if (a instanceof Player)
-			{
-				if (((Player) a).isAttacking() && ((Player) a).getAttackPos().equals(point))
-				{
-					return ((Player) a).getAttackSymbol();
-				}
-			}
+			return a.getSymbol();
+		}
+		Player attacker = attackerOf(x, y, z);
+		if (attacker != null)
+		{
+			return attacker.getAttackSymbol();
 		}
 
-		return this.dungeon.getTile(new Point3D(x, y, z));
+		return this.dungeon.getTileType(x, y, z).getSymbol();
 	}
 
 	public int getColor(int x, int y, int z)
 	{
-		for (Actor a : otherActors.values())
+		Actor a = actorIndex.actorAt(x, y, z);
+		if (a != null)
 		{
-			if (a.getPos().equals(new Point3D(x, y, z)))
-			{
-				return a.getColor();
-			}
+			return a.getColor();
 		}
 
-
 		if (dungeon.isStairUp(x, y, z) || dungeon.isStairDown(x, y, z))
 			return (int) (255.0 / 2);
 		return 255;
 	}
 
+	/**
+	 * Finds a player whose attack is drawn on the given tile, only the
+	 * four neighbouring tiles can hold such a player
+	 */
+	private Player attackerOf(int x, int y, int z)
+	{
+		Player attacker = attackerAt(x - 1, y, z, x, y);
+		if (attacker == null)
+			attacker = attackerAt(x + 1, y, z, x, y);
+		if (attacker == null)
+			attacker = attackerAt(x, y - 1, z, x, y);
+		if (attacker == null)
+			attacker = attackerAt(x, y + 1, z, x, y);
+		return attacker;
+	}
+
+	private Player attackerAt(int fromX, int fromY, int z, int x, int y)
+	{
+		for (Actor a = actorIndex.actorAt(fromX, fromY, z); a != null; a = a.getNextInCell())
+		{
+			if (a instanceof Player && ((Player) a).isAttacking())
+			{
+				Point3D delta = ((Player) a).getDelta();
+				if (fromX + delta.x == x && fromY + delta.y == y)
+					return (Player) a;
+			}
+		}
+		return null;
+	}
+
 	/* Convinience setters and getters, also game state information*/
 	public void setID(int id)
 	{
@@ -95,8 +120,19 @@ public class GameModel
 
 	public void setDungeon(String[][][] dungeon)
 	{
-		this.dungeon = new Dungeon(dungeon);
+		setDungeon(new Dungeon(dungeon));
+	}
+
+	public void setDungeon(Dungeon dungeon)
+	{
+		this.dungeon = dungeon;
 		this.dungeon.revealAll();
+		actorIndex = new SpatialIndex(this.dungeon.getColumns(), this.dungeon.getRows(),
+		                              this.dungeon.getFloors());
+		for (Actor actor : otherActors.values())
+		{
+			actorIndex.add(actor);
+		}
 	}
 
 
@@ -163,23 +199,23 @@ public class GameModel
 		{
 			if (actorUpdate.contains("remove"))
 			{
-				otherActors.remove(actorUpdate.getActorID());
+				actorIndex.remove(otherActors.remove(actorUpdate.getActorID()));
 			}
 			else
 			{
 				Actor actor = otherActors.get(actorUpdate.getActorID());
 
 				if (actorUpdate.contains("X"))
-					actor.setX(((Long) actorUpdate.getValue("X")).intValue());
+					actor.setX(actorUpdate.getIntValue("X"));
 
 				if (actorUpdate.contains("Y"))
-					actor.setY(((Long) actorUpdate.getValue("Y")).intValue());
+					actor.setY(actorUpdate.getIntValue("Y"));
 
 				if (actorUpdate.contains("Z"))
-					actor.setZ(((Long) actorUpdate.getValue("Z")).intValue());
+					actor.setZ(actorUpdate.getIntValue("Z"));
 
 				if (actorUpdate.contains("health"))
-					actor.setHealth(((Long) actorUpdate.getValue("health")).intValue());
+					actor.setHealth(actorUpdate.getIntValue("health"));
 
 				if (actorUpdate.contains("symbol"))
 					actor.setSymbol((String) actorUpdate.getValue("symbol"));
@@ -189,27 +225,59 @@ public class GameModel
 				    actorUpdate.contains("deltaY"))
 					((Player) actor)
 							.setAttacking((Boolean) actorUpdate.getValue("attacking"),
-							              new Point3D(((Long) actorUpdate.getValue("deltaX")).intValue(),
-							                          ((Long) actorUpdate.getValue("deltaY")).intValue(),
-							                          0));
+							              actorUpdate.getIntValue("deltaX"),
+							              actorUpdate.getIntValue("deltaY"));
+			}
+		}
+	}
+
+	/**
+	 * Applies the changes of a server snapshot
+	 * @param snapshot the snapshot
+	 */
+	public void applySnapshot(SnapshotPacket snapshot)
+	{
+		for (SnapshotPacket.Entry entry : snapshot.getEntries())
+		{
+			Actor actor = otherActors.get(entry.getActorID());
+			if (actor == null)
+			{
+				if (!entry.has(SnapshotPacket.NEW))
+					continue;
+				actor = entry.newActor();
+				addActor(actor);
 			}
+			else if (entry.has(SnapshotPacket.NEW))
+			{
+				actorIndex.add(actor);
+			}
+			entry.applyTo(actor);
+		}
+		for (int id : snapshot.getRemoved())
+		{
+			if (otherActors.containsKey(id))
+				actorIndex.remove(otherActors.remove(id));
+		}
+		for (int id : snapshot.getHidden())
+		{
+			Actor actor = otherActors.get(id);
+			if (actor != null)
+				actorIndex.remove(actor);
 		}
 	}
 
 	public void addActor(Actor actor)
 	{
 		if (!otherActors.containsKey(actor.getId()))
+		{
 			otherActors.put(actor.getId(), actor);
+			actorIndex.add(actor);
+		}
 	}
 
 	private boolean occupied(Point3D point)
 	{
-		for (Actor actor : otherActors.values())
-		{
-			if (actor.getPos().equals(point))
-				return true;
-		}
-		return false;
+		return actorIndex.occupied(point);
 	}
 
 }
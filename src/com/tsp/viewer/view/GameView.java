@@ -16,6 +16,7 @@ import com.tsp.game.actors.Actor;
 import com.tsp.game.map.Point3D;
 import com.tsp.packets.ActorPacket;
 import com.tsp.packets.ActorUpdate;
+import com.tsp.packets.SnapshotPacket;
 import com.tsp.packets.Packet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -111,6 +112,9 @@ public class GameView implements Listenable
 					ActorUpdate actorUpdate = (ActorUpdate) packet;
 					model.update(actorUpdate);
 					break;
+				case SNAPSHOT_PACKET:
+					model.applySnapshot((SnapshotPacket) packet);
+					break;
 				default:
 					break;
 			}